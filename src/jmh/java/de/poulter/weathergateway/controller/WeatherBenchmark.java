@@ -0,0 +1,193 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ResourceBundleMessageSource;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.DataService;
+import de.poulter.weathergateway.station.SensorCatalog;
+import de.poulter.weathergateway.station.Station;
+import de.poulter.weathergateway.station.StationBinaryTools;
+import de.poulter.weathergateway.station.StationFrame;
+import de.poulter.weathergateway.station.StateStore;
+import de.poulter.weathergateway.station.StationRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Benchmarks of {@link WeatherController#weather} including
+ * the JSON serialization, without the servlet container.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeatherBenchmark {
+
+    private static final List<String> PROJECTED_SENSORS = Arrays.asList("OutsideTemperature", "OutsideHumidity");
+    private static final List<String> PROJECTED_FIELDS = Arrays.asList("value");
+    
+    private static final String DATA_RESPONSE = "0xff 0xff 0x0b 0x00 0x50 0x04 0x01 0x00 0xd2 0x02 0x00 0x58 0x03 0x00 0x26 0x04 0x00 0x58 0x05 0x00 0x58 "
+        + "0x06 0x32 0x07 0x47 0x08 0x26 0x0e 0x09 0x27 0x9e 0x0a 0x00 0x96 0x0b 0x00 0x0d 0x0c 0x00 0x14 0x0e 0x00 0x00 0x00 0x00 "
+        + "0x10 0x00 0x00 0x00 0x00 0x11 0x00 0x00 0x00 0x4a 0x12 0x00 0x00 0x00 0x4a 0x13 0x00 0x00 0x00 0x98 0x14 0x00 0x00 0x05 0x28 "
+        + "0x15 0x00 0x03 0x0d 0x0e 0x16 0x01 0x5e 0x17 0x01 0xfc 0x53";
+    
+    private WeatherController controller;
+    private DataService dataService;
+    private Method updateValues;
+    private Station station;
+    private ByteBuffer payload;
+    private String eTag;
+    
+    @Setup
+    public void setup() throws Exception {
+        GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry());
+        
+        ResourceBundleMessageSource messageSource = new ResourceBundleMessageSource();
+        messageSource.setBasename("messages");
+        messageSource.setDefaultEncoding("UTF-8");
+        
+        WeatherResponseCache weatherResponseCache = new WeatherResponseCache();
+        ReflectionTestUtils.setField(weatherResponseCache, "objectMapper", Jackson2ObjectMapperBuilder.json().build());
+        ReflectionTestUtils.setField(weatherResponseCache, "messageSource", messageSource);
+        ReflectionTestUtils.setField(weatherResponseCache, "metrics", metrics);
+        
+        station = new Station("BC-DD-C2-9C-8E-B2", InetAddress.getLoopbackAddress(), 45000, "EasyWeather-WIFI8EB", System.currentTimeMillis());
+        StationRegistry stationRegistry = new StationRegistry();
+        stationRegistry.register(station);
+        ReflectionTestUtils.setField(weatherResponseCache, "stationRegistry", stationRegistry);
+        
+        dataService = new DataService();
+        ReflectionTestUtils.setField(dataService, "stationRegistry", stationRegistry);
+        ReflectionTestUtils.setField(dataService, "metrics", metrics);
+        ReflectionTestUtils.setField(dataService, "stateStore", new StateStore());
+        ReflectionTestUtils.setField(dataService, "sensorCatalog", SensorCatalog.defaults());
+        ReflectionTestUtils.setField(dataService, "socketTimeout", 2500);
+        ReflectionTestUtils.setField(dataService, "rate", 30000L);
+        ReflectionTestUtils.setField(dataService, "minRate", 5000L);
+        ReflectionTestUtils.setField(dataService, "maxRate", 300000L);
+        ReflectionTestUtils.setField(dataService, "demandWindow", 120000L);
+        dataService.afterPropertiesSet();
+        
+        controller = new WeatherController();
+        ReflectionTestUtils.setField(controller, "dataService", dataService);
+        ReflectionTestUtils.setField(controller, "stationRegistry", stationRegistry);
+        ReflectionTestUtils.setField(controller, "weatherResponseCache", weatherResponseCache);
+        
+        payload = new StationFrame().wrap(ByteBuffer.wrap(StationBinaryTools.stringToByteArray(DATA_RESPONSE)), 0x0b, 0x04).getPayload();
+        
+        updateValues = DataService.class.getDeclaredMethod("updateValues", Station.class, ByteBuffer.class);
+        updateValues.setAccessible(true);
+        
+        poll();
+        eTag = controller.weather(null, null, null, false, null, null).getHeaders().getETag();
+    }
+    
+    @TearDown
+    public void tearDown() throws Exception {
+        dataService.destroy();
+    }
+    
+    /**
+     * Publishes a new snapshot, as if the station was polled.
+     */
+    private void poll() throws Exception {
+        updateValues.invoke(dataService, station, payload);
+    }
+    
+    @State(Scope.Thread)
+    public static class NewSnapshot {
+        
+        @Setup(Level.Invocation)
+        public void setup(WeatherBenchmark benchmark) throws Exception {
+            benchmark.poll();
+        }
+    }
+    
+    /**
+     * Every request gets a new snapshot, so the response is rendered each time.
+     */
+    @Benchmark
+    public ResponseEntity<byte[]> weatherRendered(NewSnapshot newSnapshot) throws IOException {
+        return controller.weather(null, null, null, false, null, null);
+    }
+    
+    /**
+     * Every request gets a new snapshot, only the values of two sensors are rendered.
+     */
+    @Benchmark
+    public ResponseEntity<byte[]> weatherProjected(NewSnapshot newSnapshot) throws IOException {
+        return controller.weather(null, PROJECTED_SENSORS, PROJECTED_FIELDS, false, null, null);
+    }
+    
+    /**
+     * Every request gets a new snapshot, rendered as CBOR.
+     */
+    @Benchmark
+    public ResponseEntity<byte[]> weatherCbor(NewSnapshot newSnapshot) throws IOException {
+        return controller.weather(null, null, null, false, WeatherResponseCache.APPLICATION_CBOR_VALUE, null);
+    }
+    
+    /**
+     * The snapshot did not change, the rendered response is served from the cache.
+     */
+    @Benchmark
+    public ResponseEntity<byte[]> weatherCached() throws IOException {
+        return controller.weather(null, null, null, false, null, null);
+    }
+    
+    /**
+     * The client already has the current snapshot and gets a 304.
+     */
+    @Benchmark
+    public ResponseEntity<byte[]> weatherNotModified() throws IOException {
+        return controller.weather(null, null, null, false, null, eTag);
+    }
+    
+}
@@ -0,0 +1,155 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the station protocol codec.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    /**
+     * A complete answer of a WS980 to {@link StationBinaryTools#COMMAND_DATA}.
+     */
+    static final String DATA_RESPONSE = "0xff 0xff 0x0b 0x00 0x50 0x04 0x01 0x00 0xd2 0x02 0x00 0x58 0x03 0x00 0x26 0x04 0x00 0x58 0x05 0x00 0x58 "
+        + "0x06 0x32 0x07 0x47 0x08 0x26 0x0e 0x09 0x27 0x9e 0x0a 0x00 0x96 0x0b 0x00 0x0d 0x0c 0x00 0x14 0x0e 0x00 0x00 0x00 0x00 "
+        + "0x10 0x00 0x00 0x00 0x00 0x11 0x00 0x00 0x00 0x4a 0x12 0x00 0x00 0x00 0x4a 0x13 0x00 0x00 0x00 0x98 0x14 0x00 0x00 0x05 0x28 "
+        + "0x15 0x00 0x03 0x0d 0x0e 0x16 0x01 0x5e 0x17 0x01 0xfc 0x53";
+    
+    /**
+     * A search answer of a WS980.
+     */
+    static final String SEARCH_RESPONSE = "0xff 0xff 0x12 0x00 0x27 0xbc 0xdd 0xc2 0x9c 0x8e 0xb2 0x0a 0x00 0x00 0xca 0xaf 0xc8 0x14 "
+        + "0x45 0x61 0x73 0x79 0x57 0x65 0x61 0x74 0x68 0x65 0x72 0x2d 0x57 0x49 0x46 0x49 0x38 0x45 0x42 0x32 0x7e";
+    
+    /**
+     * An upload of an Ecowitt station which pushes its data.
+     */
+    static final String PUSH_UPLOAD = "PASSKEY=0123456789ABCDEF0123456789ABCDEF&stationtype=EasyWeatherV1.4.2&dateutc=2019-09-20+10:32:13"
+        + "&tempinf=72.1&humidityin=45&baromrelin=29.921&baromabsin=29.612&tempf=50.0&humidity=80&winddir=218"
+        + "&windspeedmph=2.24&windgustmph=4.47&maxdailygust=8.05&rainratein=0.000&eventrainin=0.000&hourlyrainin=0.000"
+        + "&dailyrainin=0.031&weeklyrainin=0.130&monthlyrainin=1.000&yearlyrainin=10.000&totalrainin=10.000"
+        + "&solarradiation=100.00&uv=2&wh65batt=0&freq=868M&model=WS2900_V2.01.10";
+    
+    private byte[] dataResponse;
+    private byte[] searchResponse;
+    private byte[] payload;
+    private ByteBuffer payloadBuffer;
+    private byte[] pushUpload;
+    
+    @Setup
+    public void setup() throws IOException {
+        dataResponse = StationBinaryTools.stringToByteArray(DATA_RESPONSE);
+        searchResponse = StationBinaryTools.stringToByteArray(SEARCH_RESPONSE);
+        payload = StationBinaryTools.parse(dataResponse, 0x0b, 0x04);
+        
+        payloadBuffer = ByteBuffer.allocateDirect(payload.length);
+        payloadBuffer.put(payload).flip();
+        
+        pushUpload = PUSH_UPLOAD.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    @Benchmark
+    public byte[] parseData() throws IOException {
+        return StationBinaryTools.parse(dataResponse, 0x0b, 0x04);
+    }
+    
+    @Benchmark
+    public byte[] parseSearch() throws IOException {
+        return StationBinaryTools.parse(searchResponse, 0x12);
+    }
+    
+    @Benchmark
+    public byte[] createCommandData() {
+        return StationBinaryTools.createCommand(0x0b, 0x04);
+    }
+    
+    @Benchmark
+    public byte[] createCommandSearch() {
+        return StationBinaryTools.createCommand(0x12);
+    }
+    
+    /**
+     * Decodes every value of a data payload through the boxing API.
+     */
+    @Benchmark
+    public void decodeArray(Blackhole blackhole) {
+        for (int pos = 0; pos < payload.length; ) {
+            Sensor sensor = Sensor.getSensor(StationBinaryTools.fromByteUnsigned(payload, pos++));
+            blackhole.consume(sensor.convertValue(payload, pos));
+            pos += sensor.getSize();
+        }
+    }
+    
+    @Benchmark
+    public void decodeBuffer(Blackhole blackhole) {
+        for (int pos = 0; pos < payloadBuffer.limit(); ) {
+            Sensor sensor = Sensor.getSensor(StationBinaryTools.fromByteUnsigned(payloadBuffer, pos++));
+            blackhole.consume(sensor.convertValue(payloadBuffer, pos));
+            pos += sensor.getSize();
+        }
+    }
+    
+    /**
+     * Decodes every value of a data payload the way {@link DataService} does.
+     */
+    @Benchmark
+    public void decodePrimitive(Blackhole blackhole) {
+        for (int pos = 0; pos < payloadBuffer.limit(); ) {
+            Sensor sensor = Sensor.getSensor(StationBinaryTools.fromByteUnsigned(payloadBuffer, pos++));
+            blackhole.consume(sensor.decodeValue(payloadBuffer, pos));
+            pos += sensor.getSize();
+        }
+    }
+    
+    /**
+     * Decodes the form uploaded by a push station.
+     */
+    @Benchmark
+    public PushDecoder.Upload decodePush() {
+        return PushDecoder.decode(pushUpload, pushUpload.length);
+    }
+    
+}
@@ -0,0 +1,201 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import org.springframework.stereotype.Component;
+
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.StationFrameException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of the poll, discovery and REST paths. All meters are registered up
+ * front, so recording a value is a plain update of a preallocated meter and
+ * does not allocate.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Component
+public class GatewayMetrics {
+
+    private static final String PREFIX = "weathergateway.";
+    
+    private final MeterRegistry registry;
+    private final Map<String, Timer> discoveryTimers = new ConcurrentHashMap<>();
+    
+    private final Timer connectTimer;
+    private final Timer firstByteTimer;
+    private final Timer decodeTimer;
+    private final Timer serializationTimer;
+    
+    private final Counter crcMismatches;
+    private final Counter shortReads;
+    private final Counter unknownSensors;
+    private final Counter[] invalidValues;
+    private final Counter pushUploads;
+    private final Counter pushRejected;
+    
+    public GatewayMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        
+        connectTimer = timer("poll.connect", "Time to establish the connection to a station.", Duration.ofMillis(1), Duration.ofSeconds(5));
+        firstByteTimer = timer("poll.first.byte", "Time from sending the request until the first byte of the response.", Duration.ofMillis(1), Duration.ofSeconds(5));
+        decodeTimer = timer("poll.decode", "Time to decode a station response into a snapshot.", Duration.ofNanos(500), Duration.ofMillis(10));
+        serializationTimer = timer("rest.serialization", "Time to serialize a weather response.", Duration.ofNanos(500), Duration.ofMillis(100));
+        
+        crcMismatches = counter("frame.crc.mismatch", "Messages with a wrong checksum.");
+        shortReads = counter("frame.short.read", "Messages which ended before their declared length.");
+        unknownSensors = counter("sensor.unknown", "Values of sensors with an unknown id.");
+        pushUploads = counter("push.upload", "Uploads of stations which push their data.");
+        pushRejected = counter("push.rejected", "Uploads which did not identify a station.");
+        
+        invalidValues = new Counter[Sensor.values().length];
+        for (Sensor sensor : Sensor.values()) {
+            invalidValues[sensor.ordinal()] = Counter.builder(PREFIX + "sensor.invalid")
+                .description("Values reported by the station as invalid.")
+                .tag("sensor", sensor.name())
+                .register(registry);
+        }
+    }
+    
+    private Timer timer(String name, String description, Duration min, Duration max) {
+        return Timer.builder(PREFIX + name)
+            .description(description)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(min)
+            .maximumExpectedValue(max)
+            .register(registry);
+    }
+    
+    private Counter counter(String name, String description) {
+        return Counter.builder(PREFIX + name)
+            .description(description)
+            .register(registry);
+    }
+    
+    /**
+     * Returns the round trip timer of a network interface. Callers should
+     * look it up once per discovery and not once per response.
+     */
+    public Timer getDiscoveryTimer(String networkInterface) {
+        Timer timer = discoveryTimers.get(networkInterface);
+        if (timer == null) {
+            timer = discoveryTimers.computeIfAbsent(networkInterface, name -> Timer.builder(PREFIX + "discovery.roundtrip")
+                .description("Time from sending the search broadcast until a station answered.")
+                .tag("interface", name)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(1))
+                .maximumExpectedValue(Duration.ofSeconds(2))
+                .register(registry));
+        }
+        
+        return timer;
+    }
+    
+    /**
+     * Returns the counter of batches a sink sent or spilled. Callers should look it up once.
+     */
+    public Counter getSinkBatchCounter(String sink, String result) {
+        return Counter.builder(PREFIX + "sink.batches")
+            .description("Batches delivered to a sink or spilled to disk.")
+            .tag("sink", sink)
+            .tag("result", result)
+            .register(registry);
+    }
+    
+    /**
+     * Returns the counter of readings a sink dropped. Callers should look it up once.
+     */
+    public Counter getSinkDropCounter(String sink) {
+        return Counter.builder(PREFIX + "sink.dropped")
+            .description("Readings dropped because the queue or the spill file of a sink was full.")
+            .tag("sink", sink)
+            .register(registry);
+    }
+    
+    public <T> void registerSnapshotAge(T source, ToDoubleFunction<T> age) {
+        Gauge.builder(PREFIX + "snapshot.age", source, age)
+            .description("Age of the oldest current snapshot of all known stations.")
+            .baseUnit("seconds")
+            .register(registry);
+    }
+    
+    public void recordConnect(long nanos) {
+        connectTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void recordFirstByte(long nanos) {
+        firstByteTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void recordDecode(long nanos) {
+        decodeTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void recordSerialization(long nanos) {
+        serializationTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void countFrameError(StationFrameException ex) {
+        switch (ex.getReason()) {
+            case CRC_MISMATCH:
+                crcMismatches.increment();
+                break;
+                
+            case SHORT_READ:
+                shortReads.increment();
+                break;
+                
+            default:
+                break;
+        }
+    }
+    
+    public void countShortRead() {
+        shortReads.increment();
+    }
+    
+    public void countUnknownSensor() {
+        unknownSensors.increment();
+    }
+    
+    public void countInvalidValue(Sensor sensor) {
+        invalidValues[sensor.ordinal()].increment();
+    }
+    
+    public void countPushUpload() {
+        pushUploads.increment();
+    }
+    
+    public void countPushRejected() {
+        pushRejected.increment();
+    }
+    
+}
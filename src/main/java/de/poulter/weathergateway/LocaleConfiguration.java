@@ -20,6 +20,7 @@
 
 package de.poulter.weathergateway;
 
+import java.util.List;
 import java.util.Locale;
 
 import org.springframework.context.annotation.Bean;
@@ -36,10 +37,29 @@ import org.springframework.web.servlet.i18n.SessionLocaleResolver;
 @Configuration
 public class LocaleConfiguration implements WebMvcConfigurer {
 
+    public static final Locale DEFAULT_LOCALE = Locale.GERMAN;
+    
+    // the locales there are message bundles for, messages.properties holds the German texts
+    public static final List<Locale> SUPPORTED_LOCALES = List.of(DEFAULT_LOCALE);
+    
+    /**
+     * Returns the supported locale with the language of the given one, or the
+     * default locale. Clients may ask for any locale with ?language=.
+     */
+    public static Locale getSupportedLocale(Locale locale) {
+        for (Locale supportedLocale : SUPPORTED_LOCALES) {
+            if (supportedLocale.getLanguage().equals(locale.getLanguage())) {
+                return supportedLocale;
+            }
+        }
+        
+        return DEFAULT_LOCALE;
+    }
+    
     @Bean(name = "localeResolver")
     public LocaleResolver localeResolver() {
         SessionLocaleResolver sessionLocaleResolver = new SessionLocaleResolver();
-        sessionLocaleResolver.setDefaultLocale(Locale.GERMAN);
+        sessionLocaleResolver.setDefaultLocale(DEFAULT_LOCALE);
         
         return sessionLocaleResolver;
     }
@@ -48,6 +68,9 @@ public class LocaleConfiguration implements WebMvcConfigurer {
     public void addInterceptors(InterceptorRegistry registry) {
         LocaleChangeInterceptor localeChangeInterceptor = new LocaleChangeInterceptor();
         localeChangeInterceptor.setParamName("language");
-        registry.addInterceptor(localeChangeInterceptor);
+        
+        // the interceptor reads the parameters, which would consume the uploads of push stations
+        registry.addInterceptor(localeChangeInterceptor)
+            .excludePathPatterns("/ingest", "/data/report", "/weatherstation/updateweatherstation.php");
     }
 }
\ No newline at end of file
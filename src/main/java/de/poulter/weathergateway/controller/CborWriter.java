@@ -0,0 +1,234 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal CBOR (RFC 7049) encoder for the few types the gateway sends. The
+ * buffer is reused after {@link #reset()}, so encoding does not allocate
+ * once it has grown to the size of a response.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class CborWriter {
+
+    private static final int MAJOR_UNSIGNED = 0 << 5;
+    private static final int MAJOR_NEGATIVE = 1 << 5;
+    private static final int MAJOR_TEXT = 3 << 5;
+    private static final int MAJOR_MAP = 5 << 5;
+    
+    private static final int SIMPLE_NULL = 0xf6;
+    private static final int FLOAT16 = 0xf9;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    
+    private byte[] buffer;
+    private int position;
+    
+    CborWriter() {
+        this(256);
+    }
+    
+    CborWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+    
+    CborWriter reset() {
+        position = 0;
+        return this;
+    }
+    
+    int size() {
+        return position;
+    }
+    
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+    
+    CborWriter writeMapHeader(int entries) {
+        writeHead(MAJOR_MAP, entries);
+        return this;
+    }
+    
+    CborWriter writeInt(long value) {
+        if (value < 0) {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        } else {
+            writeHead(MAJOR_UNSIGNED, value);
+        }
+        
+        return this;
+    }
+    
+    CborWriter writeNull() {
+        ensure(1);
+        buffer[position++] = (byte) SIMPLE_NULL;
+        return this;
+    }
+    
+    /**
+     * Writes the value as half, single or double precision float, whichever is
+     * the shortest that keeps it exactly.
+     */
+    CborWriter writeDouble(double value) {
+        float single = (float) value;
+        
+        if ((single == value) || Double.isNaN(value)) {
+            int half = toHalf(single);
+            
+            if (half >= 0) {
+                ensure(3);
+                buffer[position++] = (byte) FLOAT16;
+                buffer[position++] = (byte) (half >> 8);
+                buffer[position++] = (byte) half;
+                
+            } else {
+                ensure(5);
+                buffer[position++] = (byte) FLOAT32;
+                writeBytes(Float.floatToIntBits(single), 4);
+            }
+            
+            return this;
+        }
+        
+        ensure(9);
+        buffer[position++] = (byte) FLOAT64;
+        writeBytes(Double.doubleToLongBits(value), 8);
+        return this;
+    }
+    
+    /**
+     * Writes an ASCII text, e.g. a MAC address. Other texts are encoded as UTF-8.
+     */
+    CborWriter writeText(String text) {
+        int length = text.length();
+        
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) > 0x7f) {
+                byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+                writeHead(MAJOR_TEXT, utf8.length);
+                return writeRaw(utf8);
+            }
+        }
+        
+        writeHead(MAJOR_TEXT, length);
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Writes already encoded CBOR, e.g. a cached response.
+     */
+    CborWriter writeRaw(byte[] encoded) {
+        ensure(encoded.length);
+        System.arraycopy(encoded, 0, buffer, position, encoded.length);
+        position += encoded.length;
+        return this;
+    }
+    
+    private void writeHead(int major, long value) {
+        if (value < 24) {
+            ensure(1);
+            buffer[position++] = (byte) (major | value);
+            
+        } else if (value < 0x100) {
+            ensure(2);
+            buffer[position++] = (byte) (major | 24);
+            buffer[position++] = (byte) value;
+            
+        } else if (value < 0x10000) {
+            ensure(3);
+            buffer[position++] = (byte) (major | 25);
+            writeBytes(value, 2);
+            
+        } else if (value < 0x100000000L) {
+            ensure(5);
+            buffer[position++] = (byte) (major | 26);
+            writeBytes(value, 4);
+            
+        } else {
+            ensure(9);
+            buffer[position++] = (byte) (major | 27);
+            writeBytes(value, 8);
+        }
+    }
+    
+    private void writeBytes(long value, int count) {
+        for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+    
+    private void ensure(int count) {
+        if (position + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + count));
+        }
+    }
+    
+    /**
+     * Returns the bits of the value as half precision float, or -1 if it does
+     * not fit exactly.
+     */
+    static int toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127;
+        int mantissa = bits & 0x7fffff;
+        
+        if ((bits & 0x7fffffff) == 0) {
+            return sign;
+        }
+        
+        if (exponent == 128) {
+            // infinity or NaN, all NaNs are sent as the canonical one
+            return sign | 0x7c00 | ((mantissa != 0) ? 0x200 : 0);
+        }
+        
+        if ((exponent >= -14) && (exponent <= 15)) {
+            if ((mantissa & 0x1fff) != 0) {
+                return -1;
+            }
+            
+            return sign | ((exponent + 15) << 10) | (mantissa >> 13);
+        }
+        
+        if ((exponent >= -24) && (exponent < -14)) {
+            int shift = -1 - exponent;
+            int full = 0x800000 | mantissa;
+            
+            if ((full & ((1 << shift) - 1)) != 0) {
+                return -1;
+            }
+            
+            return sign | (full >> shift);
+        }
+        
+        return -1;
+    }
+    
+}
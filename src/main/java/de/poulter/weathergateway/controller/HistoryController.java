@@ -0,0 +1,197 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.poulter.weathergateway.station.HistoryService;
+import de.poulter.weathergateway.station.RollupService;
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.SensorRollup;
+import de.poulter.weathergateway.station.SensorRollup.Resolution;
+import de.poulter.weathergateway.station.SensorRollup.RollupSeries;
+import de.poulter.weathergateway.station.SensorSeries;
+import de.poulter.weathergateway.station.Station;
+import de.poulter.weathergateway.station.StationRegistry;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@RestController
+public class HistoryController {
+
+    private static final Logger log = LogManager.getLogger(HistoryController.class);
+    
+    private static final long DEFAULT_RANGE = 3600000;
+    
+    @Autowired
+    private HistoryService historyService;
+    
+    @Autowired
+    private RollupService rollupService;
+    
+    @Autowired
+    private StationRegistry stationRegistry;
+    
+    @Autowired
+    private WeatherResponseCache weatherResponseCache;
+    
+    @RequestMapping(value = "/weather/history", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, HistoryData>> history(
+        @RequestParam(value = "station", required = false) String station,
+        @RequestParam(value = "sensor", required = false) List<String> sensorNames,
+        @RequestParam(value = "from", required = false) Long from,
+        @RequestParam(value = "to", required = false) Long to,
+        @RequestParam(value = "step", defaultValue = "0") long step
+    ) {
+        log.info("REST: /weather/history");
+        
+        station = resolveStation(station);
+        
+        long end = (to != null) ? to : System.currentTimeMillis();
+        long start = (from != null) ? from : (end - DEFAULT_RANGE);
+        
+        List<Sensor> sensors = resolveSensors(sensorNames);
+        if (sensors == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        if ((station == null) || !historyService.hasHistory(station)) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        Map<String, HistoryData> data = new TreeMap<>();
+        for (Sensor sensor : sensors) {
+            SensorSeries series = historyService.query(station, sensor, start, end, step);
+            
+            HistoryData historyData = new HistoryData();
+            historyData.setId(sensor.getId());
+            historyData.setUnit(weatherResponseCache.getSymbol(sensor.getUnit(), LocaleContextHolder.getLocale()));
+            historyData.setTimestamps(series.getTimestamps());
+            historyData.setValues(series.getValues());
+            
+            data.put(sensor.name(), historyData);
+        }
+        
+        return ResponseEntity.ok(data);
+    }
+    
+    @RequestMapping(value = "/weather/rollup", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, RollupData>> rollup(
+        @RequestParam(value = "station", required = false) String station,
+        @RequestParam(value = "sensor", required = false) List<String> sensorNames,
+        @RequestParam(value = "resolution", defaultValue = "HOUR") String resolutionName,
+        @RequestParam(value = "from", required = false) Long from,
+        @RequestParam(value = "to", required = false) Long to
+    ) {
+        log.info("REST: /weather/rollup");
+        
+        station = resolveStation(station);
+        
+        Resolution resolution;
+        try {
+            resolution = Resolution.valueOf(resolutionName.toUpperCase(Locale.ROOT));
+            
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unknown resolution " + resolutionName + " requested.");
+            return ResponseEntity.badRequest().build();
+        }
+        
+        List<Sensor> sensors = resolveSensors(sensorNames);
+        if (sensors == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        SensorRollup rollup = (station != null) ? rollupService.getRollup(station, resolution) : null;
+        if (rollup == null) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        long end = (to != null) ? to : System.currentTimeMillis();
+        long start = (from != null) ? from : (end - resolution.getSize() * resolution.getCapacity());
+        
+        Map<String, RollupData> data = new TreeMap<>();
+        for (Sensor sensor : sensors) {
+            RollupSeries series = rollup.query(sensor, start, end);
+            
+            RollupData rollupData = new RollupData();
+            rollupData.setId(sensor.getId());
+            rollupData.setUnit(weatherResponseCache.getSymbol(sensor.getUnit(), LocaleContextHolder.getLocale()));
+            rollupData.setAggregation(sensor.getAggregation().name());
+            rollupData.setStarts(series.getStarts());
+            rollupData.setCounts(series.getCounts());
+            rollupData.setMin(series.getMins());
+            rollupData.setMax(series.getMaxs());
+            rollupData.setValues(series.getValues());
+            
+            data.put(sensor.name(), rollupData);
+        }
+        
+        return ResponseEntity.ok(data);
+    }
+    
+    private String resolveStation(String station) {
+        if (station != null) {
+            return station;
+        }
+        
+        Station defaultStation = stationRegistry.getDefaultStation();
+        return (defaultStation != null) ? defaultStation.getMac() : null;
+    }
+    
+    /**
+     * Returns all sensors if no names are given, or null if a name is unknown.
+     */
+    private List<Sensor> resolveSensors(List<String> sensorNames) {
+        if (sensorNames == null) {
+            return Arrays.asList(Sensor.values());
+        }
+        
+        List<Sensor> sensors = new ArrayList<>();
+        for (String sensorName : sensorNames) {
+            try {
+                sensors.add(Sensor.valueOf(sensorName));
+                
+            } catch (IllegalArgumentException ex) {
+                log.warn("Unknown sensor " + sensorName + " requested.");
+                return null;
+            }
+        }
+        
+        return sensors;
+    }
+    
+}
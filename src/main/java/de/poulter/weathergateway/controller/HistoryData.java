@@ -0,0 +1,66 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class HistoryData {
+
+    private int id;
+    private String unit;
+    private long[] timestamps;
+    private double[] values;
+    
+    
+    public int getId() {
+        return id;
+    }
+    
+    public void setId(int id) {
+        this.id = id;
+    }
+    
+    public String getUnit() {
+        return unit;
+    }
+    
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+    
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+    
+    public void setTimestamps(long[] timestamps) {
+        this.timestamps = timestamps;
+    }
+    
+    public double[] getValues() {
+        return values;
+    }
+    
+    public void setValues(double[] values) {
+        this.values = values;
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import de.poulter.weathergateway.station.PushService;
+
+/**
+ * Takes the uploads of stations which push their data. Ecowitt stations post a
+ * form to /data/report (the path configured as customized server), Wunderground
+ * stations send their values in the query of a GET.
+ * 
+ * The form is read straight from the request into a buffer of the thread, it
+ * must not be parsed into request parameters before.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@RestController
+public class IngestController {
+
+    private static final Logger log = LogManager.getLogger(IngestController.class);
+    
+    // the Wunderground protocol expects this answer
+    private static final String SUCCESS = "success";
+    
+    private static final int MAX_FORM_LENGTH = 16384;
+    private static final ThreadLocal<byte[]> FORM_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_FORM_LENGTH]);
+    
+    @Autowired
+    private PushService pushService;
+    
+    @RequestMapping(value = { "/ingest", "/data/report", "/weatherstation/updateweatherstation.php" }, method = { RequestMethod.GET, RequestMethod.POST })
+    public ResponseEntity<String> ingest(HttpServletRequest request) throws IOException {
+        // no info log, thousands of stations may upload every few seconds
+        log.debug("REST: " + request.getRequestURI());
+        
+        byte[] form = FORM_BUFFER.get();
+        int length = read(request.getInputStream(), form);
+        
+        if (length < 0) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        
+        if (length == 0) {
+            String query = request.getQueryString();
+            form = (query != null) ? query.getBytes(StandardCharsets.ISO_8859_1) : new byte[0];
+            length = form.length;
+        }
+        
+        // the remote address is a literal, so this does not resolve anything
+        InetAddress address = InetAddress.getByName(request.getRemoteAddr());
+        
+        switch (pushService.ingest(form, length, address)) {
+            case ACCEPTED:
+                return ResponseEntity.ok().contentType(MediaType.TEXT_PLAIN).body(SUCCESS);
+                
+            case BUSY:
+                // the station sends its next upload anyway, it must not give up
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+                
+            default:
+                return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    /**
+     * Reads the body into the buffer, returns its length or -1 if it does not fit.
+     */
+    private static int read(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int read;
+        
+        while ((length < buffer.length) && ((read = in.read(buffer, length, buffer.length - length)) > 0)) {
+            length += read;
+        }
+        
+        return ((length == buffer.length) && (in.read() >= 0)) ? -1 : length;
+    }
+    
+}
@@ -0,0 +1,129 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import de.poulter.weathergateway.station.Sensor;
+
+/**
+ * The sensors and fields a client asked for. Rendered responses are cached
+ * by the key of their projection, which only depends on the sets of sensors
+ * and fields, not on the order or repetition of their names.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public final class Projection {
+
+    public enum Field {
+        ID, NAME, UNIT, VALUE
+    }
+    
+    public static final Projection ALL = new Projection(EnumSet.allOf(Sensor.class), EnumSet.allOf(Field.class));
+    
+    private final Set<Sensor> sensors;
+    private final Set<Field> fields;
+    private final String key;
+    
+    private Projection(Set<Sensor> sensors, Set<Field> fields) {
+        this.sensors = Collections.unmodifiableSet(sensors);
+        this.fields = Collections.unmodifiableSet(fields);
+        
+        long sensorMask = 0;
+        for (Sensor sensor : sensors) {
+            sensorMask |= 1L << sensor.ordinal();
+        }
+        
+        int fieldMask = 0;
+        for (Field field : fields) {
+            fieldMask |= 1 << field.ordinal();
+        }
+        
+        this.key = Long.toHexString(sensorMask) + "/" + Integer.toHexString(fieldMask);
+    }
+    
+    /**
+     * Returns the projection for the given sensor and field names, all if
+     * none are given, or null if a name is unknown.
+     */
+    public static Projection of(List<String> sensorNames, List<String> fieldNames) {
+        if ((sensorNames == null) && (fieldNames == null)) {
+            return ALL;
+        }
+        
+        EnumSet<Sensor> sensors = EnumSet.noneOf(Sensor.class);
+        EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+        
+        try {
+            if (sensorNames == null) {
+                sensors.addAll(ALL.sensors);
+            } else {
+                for (String sensorName : sensorNames) {
+                    sensors.add(Sensor.valueOf(sensorName.trim()));
+                }
+            }
+            
+            if (fieldNames == null) {
+                fields.addAll(ALL.fields);
+            } else {
+                for (String fieldName : fieldNames) {
+                    fields.add(Field.valueOf(fieldName.trim().toUpperCase(Locale.ROOT)));
+                }
+            }
+            
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        
+        if (sensors.isEmpty() || fields.isEmpty()) {
+            return null;
+        }
+        
+        // asking for everything by name is the same as asking for nothing
+        Projection projection = new Projection(sensors, fields);
+        return projection.key.equals(ALL.key) ? ALL : projection;
+    }
+    
+    public Set<Sensor> getSensors() {
+        return sensors;
+    }
+    
+    public boolean contains(Field field) {
+        return fields.contains(field);
+    }
+    
+    /**
+     * Equal for equal projections, regardless of the order of the names.
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    @Override
+    public String toString() {
+        return "Projection [sensors=" + sensors + ", fields=" + fields + "]";
+    }
+    
+}
@@ -20,22 +20,31 @@
 
 package de.poulter.weathergateway.controller;
 
+import java.util.Optional;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 /**
+ * Fields left out by the projection are null and not rendered. An invalid
+ * value is empty and rendered as null, like in CBOR.
+ * 
  * @author Christian Poulter <devel@poulter.de>
  */
+@JsonInclude(Include.NON_NULL)
 public class SensorData {
 
-    private int id;
+    private Integer id;
     private String name;
     private String unit;
-    private double value;
+    private Optional<Double> value;
     
     
-    public int getId() {
+    public Integer getId() {
         return id;
     }
 
-    public void setId(int id) {
+    public void setId(Integer id) {
         this.id = id;
     }
 
@@ -47,12 +56,12 @@ public class SensorData {
         this.name = name;
     }
     
-    public double getValue() {
+    public Optional<Double> getValue() {
         return value;
     }
     
-    public void setValue(double value) {
-        this.value = value;
+    public void setValue(Double value) {
+        this.value = Optional.ofNullable(value);
     }
 
     public String getUnit() {
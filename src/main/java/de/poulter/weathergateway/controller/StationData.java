@@ -0,0 +1,87 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationData {
+
+    private String mac;
+    private String name;
+    private String address;
+    private int port;
+    private long lastSeen;
+    private String firmware;
+    
+    
+    public String getMac() {
+        return mac;
+    }
+    
+    public void setMac(String mac) {
+        this.mac = mac;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+    public String getAddress() {
+        return address;
+    }
+    
+    public void setAddress(String address) {
+        this.address = address;
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public void setPort(int port) {
+        this.port = port;
+    }
+    
+    public long getLastSeen() {
+        return lastSeen;
+    }
+    
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+    
+    /**
+     * The firmware version reported by the station, null until it was read.
+     */
+    public String getFirmware() {
+        return firmware;
+    }
+    
+    public void setFirmware(String firmware) {
+        this.firmware = firmware;
+    }
+    
+}
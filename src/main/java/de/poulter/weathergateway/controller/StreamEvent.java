@@ -0,0 +1,68 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.util.Map;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StreamEvent {
+
+    private String station;
+    private long sequence;
+    private long timestamp;
+    private Map<String, Double> values;
+    
+    
+    public String getStation() {
+        return station;
+    }
+    
+    public void setStation(String station) {
+        this.station = station;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+    
+    public Map<String, Double> getValues() {
+        return values;
+    }
+    
+    public void setValues(Map<String, Double> values) {
+        this.values = values;
+    }
+    
+}
@@ -20,21 +20,39 @@
 
 package de.poulter.weathergateway.controller;
 
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.MessageSource;
 import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import de.poulter.weathergateway.controller.WeatherResponseCache.Format;
+import de.poulter.weathergateway.controller.WeatherResponseCache.RenderedResponse;
 import de.poulter.weathergateway.station.DataService;
-import de.poulter.weathergateway.station.Sensor;
-import de.poulter.weathergateway.station.Unit;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.Station;
+import de.poulter.weathergateway.station.StationRegistry;
 
 /**
  * @author Christian Poulter <devel@poulter.de>
@@ -44,40 +62,226 @@ public class WeatherController {
 
     private static final Logger log = LogManager.getLogger(WeatherController.class);
     
+    private static final String STALE_WARNING = "110 - \"Response is Stale\"";
+    private static final Pattern DURATION = Pattern.compile("(\\d{1,9})(ms|s|m)?");
+    
+    // the responses are rendered per locale and format
+    private static final String[] VARY = { HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_LANGUAGE };
+    
     @Autowired
     private DataService dataService;
     
     @Autowired
-    MessageSource messageSource;
+    private StationRegistry stationRegistry;
+    
+    @Autowired
+    private WeatherResponseCache weatherResponseCache;
     
+    @Autowired
+    private WeatherStream weatherStream;
+    
+    /**
+     * Returns the values of the station, limited to the given sensors and
+     * fields (id, name, unit, value) if any are given. Clients accepting
+     * application/cbor get a map of sensor id to value instead, with fixed=true
+     * the values are integers in tenths. Unknown stations are not found.
+     */
     @RequestMapping(value = "/weather", method = RequestMethod.GET)
-    public Map<String, SensorData> weather() {
+    public ResponseEntity<byte[]> weather(
+        @RequestParam(value = "station", required = false) String station,
+        @RequestParam(value = "sensor", required = false) List<String> sensorNames,
+        @RequestParam(value = "fields", required = false) List<String> fieldNames,
+        @RequestParam(value = "fixed", defaultValue = "false") boolean fixed,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) throws IOException {
         log.info("REST: /weather");
         
-        Map<Sensor, Double> currentValues = dataService.getCurrentValues();
+        Projection projection = Projection.of(sensorNames, fieldNames);
+        if (projection == null) {
+            log.warn("Unknown sensor or field requested: " + sensorNames + ", " + fieldNames);
+            return ResponseEntity.badRequest().build();
+        }
+        
+        if ((station != null) && (stationRegistry.getStation(station) == null)) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        Format format = Format.of(accept, fixed);
+        SensorSnapshot snapshot = (station != null) ? dataService.getSnapshot(station) : dataService.getSnapshot();
+        RenderedResponse response = weatherResponseCache.getResponse(station, snapshot, LocaleContextHolder.getLocale(), projection, format);
+        
+        return toResponse(response, ifNoneMatch, false);
+    }
+    
+    /**
+     * Like /weather, but if the snapshot is older than maxAge (e.g. 5s, 500ms, 1m
+     * or plain seconds) the station is polled first. Concurrent requests share
+     * that poll. If it fails, the older snapshot is served with a warning.
+     */
+    @RequestMapping(value = "/weather", method = RequestMethod.GET, params = "maxAge")
+    public CompletableFuture<ResponseEntity<byte[]>> freshWeather(
+        @RequestParam(value = "station", required = false) String station,
+        @RequestParam(value = "maxAge") String maxAge,
+        @RequestParam(value = "sensor", required = false) List<String> sensorNames,
+        @RequestParam(value = "fields", required = false) List<String> fieldNames,
+        @RequestParam(value = "fixed", defaultValue = "false") boolean fixed,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) throws IOException {
+        log.info("REST: /weather?maxAge=" + maxAge);
+        
+        long maxAgeMillis = parseDuration(maxAge);
+        Projection projection = Projection.of(sensorNames, fieldNames);
+        if ((maxAgeMillis < 0) || (projection == null)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        
+        Station target = (station != null) ? stationRegistry.getStation(station) : stationRegistry.getDefaultStation();
+        if ((station != null) && (target == null)) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        
+        SensorSnapshot snapshot = (station != null) ? dataService.getSnapshot(station) : dataService.getSnapshot();
+        Locale locale = LocaleContextHolder.getLocale();
+        Format format = Format.of(accept, fixed);
+        
+        if ((target == null) || (System.currentTimeMillis() - snapshot.getTimestamp() <= maxAgeMillis)) {
+            return CompletableFuture.completedFuture(toResponse(weatherResponseCache.getResponse(station, snapshot, locale, projection, format), ifNoneMatch, false));
+        }
+        
+        // rendered on the common pool, not on the poller thread which completes the refresh
+        return dataService.refresh(target).handleAsync((fresh, ex) -> {
+            try {
+                if (ex != null) {
+                    log.warn("Could not refresh station " + target + ", serving older values: " + ex);
+                    return toResponse(weatherResponseCache.getResponse(station, snapshot, locale, projection, format), ifNoneMatch, true);
+                }
+                
+                return toResponse(weatherResponseCache.getResponse(station, fresh, locale, projection, format), ifNoneMatch, false);
+                
+            } catch (IOException renderEx) {
+                throw new CompletionException(renderEx);
+            }
+        });
+    }
+    
+    /**
+     * Returns the given or all known stations in one JSON object by MAC,
+     * each rendered like /weather. Unknown stations are left out.
+     */
+    @RequestMapping(value = "/weather/batch", method = RequestMethod.GET)
+    public ResponseEntity<byte[]> batch(
+        @RequestParam(value = "station", required = false) List<String> stations,
+        @RequestParam(value = "sensor", required = false) List<String> sensorNames,
+        @RequestParam(value = "fields", required = false) List<String> fieldNames,
+        @RequestParam(value = "fixed", defaultValue = "false") boolean fixed,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept
+    ) throws IOException {
+        log.info("REST: /weather/batch");
+        
+        Projection projection = Projection.of(sensorNames, fieldNames);
+        if (projection == null) {
+            log.warn("Unknown sensor or field requested: " + sensorNames + ", " + fieldNames);
+            return ResponseEntity.badRequest().build();
+        }
         
-        Map<String, SensorData> data = new TreeMap<>();
-        for (Sensor sensor : currentValues.keySet()) {
-            SensorData sensorData = new SensorData();
-            sensorData.setId(sensor.getId());
-            sensorData.setName(getName(sensor));
-            sensorData.setUnit(getSymbol(sensor.getUnit()));
-            sensorData.setValue(currentValues.get(sensor));
+        List<Station> targets = (stations != null)
+            ? stations.stream().map(stationRegistry::getStation).filter(Objects::nonNull).collect(Collectors.toList())
+            : stationRegistry.getStations();
+        
+        Locale locale = LocaleContextHolder.getLocale();
+        Format format = Format.of(accept, fixed);
+        Map<String, RenderedResponse> responses = new TreeMap<>();
+        boolean stale = false;
+        
+        for (Station target : targets) {
+            SensorSnapshot snapshot = dataService.getSnapshot(target.getMac());
+            RenderedResponse response = weatherResponseCache.getResponse(target.getMac(), snapshot, locale, projection, format);
             
-            data.put(sensor.name(), sensorData);
+            responses.put(target.getMac(), response);
+            stale |= response.isStale();
+        }
+        
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+            .contentType(format.getMediaType())
+            .header(HttpHeaders.VARY, VARY);
+        
+        if (stale) {
+            builder.header(HttpHeaders.WARNING, STALE_WARNING);
+        }
+        
+        return builder.body(weatherResponseCache.join(responses, format));
+    }
+    
+    private ResponseEntity<byte[]> toResponse(RenderedResponse response, String ifNoneMatch, boolean outdated) {
+        if (response.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).header(HttpHeaders.VARY, VARY).eTag(response.getETag()).build();
+        }
+        
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok()
+            .contentType(response.getFormat().getMediaType())
+            .header(HttpHeaders.VARY, VARY)
+            .eTag(response.getETag());
+        
+        if (response.isStale() || outdated) {
+            // restored after a restart and not polled yet, or older than requested
+            builder.header(HttpHeaders.WARNING, STALE_WARNING);
         }
         
-        return data;
+        return builder.body(response.getBody());
     }
     
-    private String getName(Sensor sensor) {
-        String key = Sensor.class.getName() + "." + sensor.name();
-        return messageSource.getMessage(key, null, LocaleContextHolder.getLocale());
+    /**
+     * Parses durations like 500ms, 5s, 1m or 5 (seconds), returns -1 if invalid.
+     */
+    static long parseDuration(String duration) {
+        Matcher matcher = DURATION.matcher(duration.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        
+        long value = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        
+        if ("ms".equals(unit)) {
+            return value;
+        } else if ("m".equals(unit)) {
+            return value * 60000;
+        }
+        
+        return value * 1000;
+    }
+    
+    @RequestMapping(value = "/weather/stream", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(
+        @RequestParam(value = "station", required = false) String station,
+        @RequestParam(value = "changed", defaultValue = "false") boolean changedOnly
+    ) {
+        log.info("REST: /weather/stream");
+        
+        return weatherStream.subscribe(station, changedOnly);
+    }
+    
+    @RequestMapping(value = "/stations", method = RequestMethod.GET)
+    public List<StationData> stations() {
+        log.info("REST: /stations");
+        
+        return stationRegistry.getStations().stream()
+            .map(this::toStationData)
+            .collect(Collectors.toList());
     }
     
-    private String getSymbol(Unit unit) {
-        String key = Unit.class.getName() + "." + unit.name();
-        return messageSource.getMessage(key, null, LocaleContextHolder.getLocale());
+    private StationData toStationData(Station station) {
+        StationData stationData = new StationData();
+        stationData.setMac(station.getMac());
+        stationData.setName(station.getName());
+        stationData.setAddress(station.getAddress().getHostAddress());
+        stationData.setPort(station.getPort());
+        stationData.setLastSeen(station.getLastSeen());
+        stationData.setFirmware(dataService.getFirmwareVersion(station.getMac()));
+        
+        return stationData;
     }
     
 }
\ No newline at end of file
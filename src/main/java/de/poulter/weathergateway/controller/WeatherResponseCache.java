@@ -0,0 +1,383 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.MessageSource;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.LocaleConfiguration;
+import de.poulter.weathergateway.controller.Projection.Field;
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.Station;
+import de.poulter.weathergateway.station.StationListener;
+import de.poulter.weathergateway.station.StationRegistry;
+import de.poulter.weathergateway.station.Unit;
+
+/**
+ * Keeps the rendered JSON of the latest snapshot per station, locale and
+ * projection, so it is only rendered once per poll and not once per request.
+ * Only registered stations and supported locales get their own entries, the
+ * entries of a station are dropped when it expires.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Component
+public class WeatherResponseCache implements StationListener {
+
+    public static final String APPLICATION_CBOR_VALUE = "application/cbor";
+    
+    private static final String DEFAULT_STATION = "";
+    private static final String UNKNOWN_STATION = "?";
+    private static final int MAX_PROJECTIONS = 64;
+    private static final ThreadLocal<CborWriter> CBOR_WRITER = ThreadLocal.withInitial(CborWriter::new);
+    
+    private final Map<String, StationResponses> responses = new ConcurrentHashMap<>();
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private MessageSource messageSource;
+    
+    @Autowired
+    private GatewayMetrics metrics;
+    
+    @Autowired
+    private StationRegistry stationRegistry;
+    
+    public RenderedResponse getResponse(String station, SensorSnapshot snapshot, Locale locale) throws JsonProcessingException {
+        return getResponse(station, snapshot, locale, Projection.ALL);
+    }
+    
+    public RenderedResponse getResponse(String station, SensorSnapshot snapshot, Locale locale, Projection projection) throws JsonProcessingException {
+        return getResponse(station, snapshot, locale, projection, Format.JSON);
+    }
+    
+    public RenderedResponse getResponse(String station, SensorSnapshot snapshot, Locale locale, Projection projection, Format format) throws JsonProcessingException {
+        // binary responses do not contain names or units
+        locale = (format == Format.JSON) ? LocaleConfiguration.getSupportedLocale(locale) : Locale.ROOT;
+        
+        StationResponses stationResponses = responses.computeIfAbsent(getStationKey(station), s -> new StationResponses());
+        String key = locale.toLanguageTag() + "|" + projection.getKey() + "|" + format.name();
+        
+        RenderedResponse response = stationResponses.get(key, projection);
+        if ((response == null) || (response.getSequence() != snapshot.getSequence())) {
+            response = render(snapshot, locale, projection, format);
+            stationResponses.put(key, projection, response);
+        }
+        
+        return response;
+    }
+    
+    /**
+     * Clients may ask for any station, the ones which are not registered share
+     * one entry. Responses are checked against the sequence of the snapshot, so
+     * sharing an entry costs renderings but never serves the wrong values.
+     */
+    private String getStationKey(String station) {
+        if (station == null) {
+            return DEFAULT_STATION;
+        }
+        
+        return (stationRegistry.getStation(station) != null) ? station : UNKNOWN_STATION;
+    }
+    
+    @Override
+    public void onExpired(Station station) {
+        responses.remove(station.getMac());
+    }
+    
+    /**
+     * Joins the rendered responses to one JSON object or CBOR map by station,
+     * without rendering them again.
+     */
+    public byte[] join(Map<String, RenderedResponse> responsesByStation, Format format) throws IOException {
+        if (format != Format.JSON) {
+            CborWriter writer = CBOR_WRITER.get().reset();
+            writer.writeMapHeader(responsesByStation.size());
+            
+            for (Map.Entry<String, RenderedResponse> entry : responsesByStation.entrySet()) {
+                writer.writeText(entry.getKey());
+                writer.writeRaw(entry.getValue().getBody());
+            }
+            
+            return writer.toByteArray();
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('{');
+        
+        boolean first = true;
+        for (Map.Entry<String, RenderedResponse> entry : responsesByStation.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            
+            out.write(objectMapper.writeValueAsBytes(entry.getKey()));
+            out.write(':');
+            out.write(entry.getValue().getBody());
+            first = false;
+        }
+        
+        out.write('}');
+        return out.toByteArray();
+    }
+    
+    private RenderedResponse render(SensorSnapshot snapshot, Locale locale, Projection projection, Format format) throws JsonProcessingException {
+        long started = System.nanoTime();
+        
+        byte[] body = (format == Format.JSON) ? renderJson(snapshot, locale, projection) : renderCbor(snapshot, projection, format);
+        
+        String tag = snapshot.getSequence() + "-" + locale.toLanguageTag();
+        if (projection != Projection.ALL) {
+            tag += "-" + projection.getKey();
+        }
+        
+        if (format != Format.JSON) {
+            tag += "-" + format.name().toLowerCase(Locale.ROOT);
+        }
+        
+        String eTag = "\"" + tag + "\"";
+        metrics.recordSerialization(System.nanoTime() - started);
+        
+        return new RenderedResponse(snapshot.getSequence(), eTag, body, snapshot.isStale(), format);
+    }
+    
+    private byte[] renderJson(SensorSnapshot snapshot, Locale locale, Projection projection) throws JsonProcessingException {
+        Map<String, SensorData> data = new TreeMap<>();
+        for (Sensor sensor : projection.getSensors()) {
+            SensorData sensorData = new SensorData();
+            
+            if (projection.contains(Field.ID)) {
+                sensorData.setId(sensor.getId());
+            }
+            
+            if (projection.contains(Field.NAME)) {
+                sensorData.setName(getName(sensor, locale));
+            }
+            
+            if (projection.contains(Field.UNIT)) {
+                sensorData.setUnit(getSymbol(sensor.getUnit(), locale));
+            }
+            
+            if (projection.contains(Field.VALUE)) {
+                sensorData.setValue(snapshot.isValid(sensor) ? snapshot.getValue(sensor) : null);
+            }
+            
+            data.put(sensor.name(), sensorData);
+        }
+        
+        return objectMapper.writeValueAsBytes(data);
+    }
+    
+    /**
+     * Renders a map of sensor id to value, invalid values are null.
+     */
+    static byte[] renderCbor(SensorSnapshot snapshot, Projection projection, Format format) {
+        CborWriter writer = CBOR_WRITER.get().reset();
+        writer.writeMapHeader(projection.getSensors().size());
+        
+        for (Sensor sensor : projection.getSensors()) {
+            writer.writeInt(sensor.getId());
+            
+            if (!snapshot.isValid(sensor)) {
+                writer.writeNull();
+            } else if (format == Format.CBOR_FIXED) {
+                writer.writeInt(Math.round(snapshot.getValue(sensor) * 10.0));
+            } else {
+                writer.writeDouble(snapshot.getValue(sensor));
+            }
+        }
+        
+        return writer.toByteArray();
+    }
+    
+    String getName(Sensor sensor, Locale locale) {
+        String key = Sensor.class.getName() + "." + sensor.name();
+        return messageSource.getMessage(key, null, locale);
+    }
+    
+    String getSymbol(Unit unit, Locale locale) {
+        String key = Unit.class.getName() + "." + unit.name();
+        return messageSource.getMessage(key, null, locale);
+    }
+    
+    public enum Format {
+        
+        JSON(MediaType.APPLICATION_JSON),
+        
+        /**
+         * Values as the shortest float that keeps them exactly.
+         */
+        CBOR(MediaType.valueOf(APPLICATION_CBOR_VALUE)),
+        
+        /**
+         * Values as integers in tenths, like the station sends them.
+         */
+        CBOR_FIXED(MediaType.valueOf(APPLICATION_CBOR_VALUE));
+        
+        private final MediaType mediaType;
+        
+        private Format(MediaType mediaType) {
+            this.mediaType = mediaType;
+        }
+        
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+        
+        /**
+         * Picks the format by the Accept header, JSON unless CBOR is preferred.
+         */
+        public static Format of(String accept, boolean fixed) {
+            if (accept == null) {
+                return JSON;
+            }
+            
+            List<MediaType> mediaTypes;
+            try {
+                mediaTypes = MediaType.parseMediaTypes(accept);
+                
+            } catch (InvalidMediaTypeException ex) {
+                return JSON;
+            }
+            
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for (MediaType mediaType : mediaTypes) {
+                if (mediaType.includes(JSON.mediaType)) {
+                    return JSON;
+                }
+                
+                if (mediaType.includes(CBOR.mediaType)) {
+                    return fixed ? CBOR_FIXED : CBOR;
+                }
+            }
+            
+            return JSON;
+        }
+    }
+    
+    public static class RenderedResponse {
+        
+        private final long sequence;
+        private final String eTag;
+        private final byte[] body;
+        private final boolean stale;
+        private final Format format;
+        
+        private RenderedResponse(long sequence, String eTag, byte[] body, boolean stale, Format format) {
+            this.sequence = sequence;
+            this.eTag = eTag;
+            this.body = body;
+            this.stale = stale;
+            this.format = format;
+        }
+        
+        public long getSequence() {
+            return sequence;
+        }
+        
+        public String getETag() {
+            return eTag;
+        }
+        
+        /**
+         * The rendered body is shared by all requests and must not be changed.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+        
+        /**
+         * True if the values were restored after a restart and not polled yet.
+         */
+        public boolean isStale() {
+            return stale;
+        }
+        
+        public Format getFormat() {
+            return format;
+        }
+        
+        public boolean matches(String ifNoneMatch) {
+            return (ifNoneMatch != null) && (ifNoneMatch.contains(eTag) || ifNoneMatch.trim().equals("*"));
+        }
+    }
+    
+    /**
+     * The responses of one station. There are only a few full responses, one per
+     * locale and format, but clients may ask for any combination of sensors and
+     * fields, so only the projections asked for last are kept.
+     */
+    private static class StationResponses {
+        
+        private final Map<String, RenderedResponse> full = new ConcurrentHashMap<>();
+        
+        private final Map<String, RenderedResponse> projected = new LinkedHashMap<>(16, 0.75f, true) {
+            
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RenderedResponse> eldest) {
+                return size() > MAX_PROJECTIONS;
+            }
+        };
+        
+        private RenderedResponse get(String key, Projection projection) {
+            if (projection == Projection.ALL) {
+                return full.get(key);
+            }
+            
+            synchronized (projected) {
+                return projected.get(key);
+            }
+        }
+        
+        private void put(String key, Projection projection, RenderedResponse response) {
+            if (projection == Projection.ALL) {
+                full.put(key, response);
+                return;
+            }
+            
+            synchronized (projected) {
+                projected.put(key, response);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,364 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.poulter.weathergateway.station.DataService;
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.SnapshotListener;
+import de.poulter.weathergateway.station.Station;
+
+/**
+ * Pushes every new snapshot to the subscribers of /weather/stream. Idle
+ * subscribers do not hold a thread; every subscriber has a small buffer with
+ * at most one pending snapshot per station, so a slow subscriber only gets
+ * fewer (coalesced) updates and never builds up memory.
+ * 
+ * The dispatchers hand each write to a writer thread and wait for it at most
+ * stream.send.timeout; a subscriber whose write takes longer is dropped and
+ * its write is left to the writer thread, so stalled clients cannot hold up
+ * the dispatchers for long. Idle subscribers get a heartbeat, so connections
+ * which are gone are noticed.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Component
+public class WeatherStream implements SnapshotListener, DisposableBean {
+
+    private static final Logger log = LogManager.getLogger(WeatherStream.class);
+    
+    private static final int DISPATCHER_THREADS = 4;
+    private static final long CHECK_RATE = 1000;
+    
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Update heartbeat = new Update(null, null);
+    
+    private final ExecutorService dispatcher = Executors.newFixedThreadPool(DISPATCHER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "weather-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // one thread per running write, a blocked write only keeps its own thread
+    private final ExecutorService writer = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "weather-stream-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    @Autowired
+    private ObjectMapper objectMapper;
+    
+    @Autowired
+    private DataService dataService;
+    
+    @Value("${stream.timeout}")
+    private Long timeout;
+    
+    @Value("${stream.buffer}")
+    private Integer bufferSize;
+    
+    @Value("${stream.heartbeat}")
+    private Long heartbeatInterval;
+    
+    @Value("${stream.send.timeout}")
+    private Long sendTimeout;
+    
+    @Override
+    public void destroy() throws Exception {
+        dispatcher.shutdownNow();
+        writer.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+    
+    /**
+     * Subscribes to one station or, if station is null, to all stations.
+     */
+    public SseEmitter subscribe(String station, boolean changedOnly) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        Subscriber subscriber = new Subscriber(emitter, station, changedOnly);
+        
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(ex -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        
+        log.info("New stream subscriber, now " + subscribers.size() + " subscribers.");
+        return emitter;
+    }
+    
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        Update update = null;
+        
+        for (Subscriber subscriber : subscribers) {
+            if ((subscriber.station != null) && !subscriber.station.equals(station.getMac())) {
+                continue;
+            }
+            
+            if (update == null) {
+                update = new Update(station.getMac(), snapshot);
+                
+                // keep subscribed stations at the fast poll rate
+                dataService.registerDemand(station.getMac());
+            }
+            
+            if (subscriber.offer(update)) {
+                dispatcher.execute(subscriber);
+            }
+        }
+    }
+    
+    /**
+     * Sends a heartbeat to idle subscribers.
+     */
+    @Scheduled(fixedRate = CHECK_RATE)
+    public void checkSubscribers() {
+        long now = System.currentTimeMillis();
+        
+        for (Subscriber subscriber : subscribers) {
+            if ((now - subscriber.lastActivity > heartbeatInterval) && subscriber.offerHeartbeat()) {
+                dispatcher.execute(subscriber);
+            }
+        }
+    }
+    
+    private String render(String mac, SensorSnapshot snapshot, SensorSnapshot previous) throws IOException {
+        Map<String, Double> values = new TreeMap<>();
+        
+        for (Sensor sensor : Sensor.values()) {
+            if (!snapshot.isValid(sensor)) {
+                continue;
+            }
+            
+            double value = snapshot.getValue(sensor);
+            if ((previous == null) || !previous.isValid(sensor) || (Double.compare(previous.getValue(sensor), value) != 0)) {
+                values.put(sensor.name(), value);
+            }
+        }
+        
+        if (values.isEmpty() && (previous != null)) {
+            return null;
+        }
+        
+        StreamEvent event = new StreamEvent();
+        event.setStation(mac);
+        event.setSequence(snapshot.getSequence());
+        event.setTimestamp(snapshot.getTimestamp());
+        event.setValues(values);
+        
+        return objectMapper.writeValueAsString(event);
+    }
+    
+    /**
+     * A snapshot with its full event, rendered at most once for all subscribers.
+     */
+    private class Update {
+        
+        private final String mac;
+        private final SensorSnapshot snapshot;
+        private String fullEvent;
+        
+        private Update(String mac, SensorSnapshot snapshot) {
+            this.mac = mac;
+            this.snapshot = snapshot;
+        }
+        
+        private synchronized String getFullEvent() throws IOException {
+            if (fullEvent == null) {
+                fullEvent = render(mac, snapshot, null);
+            }
+            
+            return fullEvent;
+        }
+    }
+    
+    private class Subscriber implements Runnable {
+        
+        private final SseEmitter emitter;
+        private final String station;
+        private final boolean changedOnly;
+        
+        // guarded by this
+        private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+        private boolean scheduled;
+        private boolean heartbeatDue;
+        private long dropped;
+        
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean closed;
+        
+        // only used by the one dispatcher thread currently running this subscriber
+        private final Map<String, SensorSnapshot> lastSent = new HashMap<>();
+        
+        private Subscriber(SseEmitter emitter, String station, boolean changedOnly) {
+            this.emitter = emitter;
+            this.station = station;
+            this.changedOnly = changedOnly;
+        }
+        
+        /**
+         * Buffers the update and returns true if the subscriber has to be scheduled.
+         */
+        private synchronized boolean offer(Update update) {
+            if (pending.remove(update.mac) == null && (pending.size() >= bufferSize)) {
+                Iterator<String> eldest = pending.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                dropped++;
+            }
+            pending.put(update.mac, update);
+            
+            if (scheduled) {
+                return false;
+            }
+            
+            scheduled = true;
+            return true;
+        }
+        
+        /**
+         * Asks for a heartbeat and returns true if the subscriber has to be scheduled.
+         */
+        private synchronized boolean offerHeartbeat() {
+            heartbeatDue = true;
+            
+            if (scheduled) {
+                return false;
+            }
+            
+            scheduled = true;
+            return true;
+        }
+        
+        private synchronized Update next() {
+            if (heartbeatDue) {
+                heartbeatDue = false;
+                return heartbeat;
+            }
+            
+            Iterator<Update> iterator = pending.values().iterator();
+            if (!iterator.hasNext()) {
+                scheduled = false;
+                return null;
+            }
+            
+            Update update = iterator.next();
+            iterator.remove();
+            return update;
+        }
+        
+        @Override
+        public void run() {
+            Update update;
+            while (!closed && ((update = next()) != null)) {
+                try {
+                    if (update == heartbeat) {
+                        send(SseEmitter.event().comment("heartbeat"));
+                        continue;
+                    }
+                    
+                    String event = changedOnly 
+                        ? render(update.mac, update.snapshot, lastSent.get(update.mac)) 
+                        : update.getFullEvent();
+                    lastSent.put(update.mac, update.snapshot);
+                    
+                    if (event != null) {
+                        send(SseEmitter.event()
+                            .name("snapshot")
+                            .id(Long.toString(update.snapshot.getSequence()))
+                            .data(event, MediaType.APPLICATION_JSON));
+                    }
+                    
+                } catch (IOException | IllegalStateException ex) {
+                    log.info("Stream subscriber is gone after " + dropped + " dropped updates: " + ex.getMessage());
+                    closed = true;
+                    subscribers.remove(this);
+                    
+                    // the emitter waits for a blocked write to return, the dispatcher must not
+                    writer.execute(() -> emitter.completeWithError(ex));
+                    return;
+                }
+            }
+        }
+        
+        private void send(SseEventBuilder event) throws IOException {
+            Future<?> write = writer.submit(() -> {
+                emitter.send(event);
+                return null;
+            });
+            
+            try {
+                write.get(sendTimeout, TimeUnit.MILLISECONDS);
+                
+            } catch (TimeoutException ex) {
+                throw new IOException("No event taken within " + sendTimeout + " ms.", ex);
+                
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IllegalStateException) {
+                    throw (IllegalStateException) ex.getCause();
+                }
+                
+                throw new IOException(ex.getCause().getMessage(), ex.getCause());
+                
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending.", ex);
+                
+            } finally {
+                lastActivity = System.currentTimeMillis();
+            }
+        }
+    }
+    
+}
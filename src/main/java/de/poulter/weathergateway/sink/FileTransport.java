@@ -0,0 +1,78 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends the batches to a local file.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class FileTransport implements SinkTransport {
+
+    private final Path file;
+    private FileChannel channel;
+    
+    FileTransport(Path file) {
+        this.file = file;
+    }
+    
+    @Override
+    public void send(byte[] batch) throws IOException {
+        if (channel == null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            
+        } catch (IOException ex) {
+            // reopen with the next batch, e.g. after the file was moved away
+            close();
+            throw ex;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            FileChannel closing = channel;
+            channel = null;
+            closing.close();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+    
+}
@@ -0,0 +1,76 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Posts every batch to an HTTP endpoint, e.g. the /write endpoint of InfluxDB.
+ * Any status but 2xx is a failure.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class HttpTransport implements SinkTransport {
+
+    private final URI uri;
+    private final Duration timeout;
+    private final HttpClient client;
+    
+    HttpTransport(URI uri, Duration timeout) {
+        this.uri = uri;
+        this.timeout = timeout;
+        this.client = HttpClient.newBuilder()
+            .connectTimeout(timeout)
+            .build();
+    }
+    
+    @Override
+    public void send(byte[] batch) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+            .timeout(timeout)
+            .header("Content-Type", "text/plain; charset=utf-8")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(batch))
+            .build();
+        
+        try {
+            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+            
+            if ((response.statusCode() < 200) || (response.statusCode() >= 300)) {
+                throw new IOException("Status " + response.statusCode() + " from " + uri + ".");
+            }
+            
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while posting to " + uri + ".");
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+    
+}
@@ -0,0 +1,126 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.nio.charset.StandardCharsets;
+
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.Station;
+
+/**
+ * One snapshot on its way to the sinks. It is rendered as a line of the InfluxDB
+ * line protocol by the first sink which needs it, not by the thread publishing
+ * the snapshot, and the line is shared by all sinks:
+ * <pre>
+ * weather,station=BC-DD-C2-9C-8E-B2,name=EasyWeather-WIFI8EB2 RoomTemperature=21,OutsideHumidity=71 1568975533000000000
+ * </pre>
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class Reading {
+
+    static final String MEASUREMENT = "weather";
+    
+    private final Station station;
+    private final SensorSnapshot snapshot;
+    
+    // rendered at most a few times if sinks race, the result is always the same
+    private volatile byte[] line;
+    
+    Reading(Station station, SensorSnapshot snapshot) {
+        this.station = station;
+        this.snapshot = snapshot;
+    }
+    
+    Station getStation() {
+        return station;
+    }
+    
+    SensorSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * The line protocol line including the line feed, it is shared and must not be changed.
+     */
+    byte[] getLine() {
+        byte[] rendered = line;
+        if (rendered == null) {
+            rendered = render().getBytes(StandardCharsets.UTF_8);
+            line = rendered;
+        }
+        
+        return rendered;
+    }
+    
+    private String render() {
+        StringBuilder builder = new StringBuilder(384);
+        builder.append(MEASUREMENT).append(",station=");
+        escape(builder, station.getMac());
+        
+        if ((station.getName() != null) && !station.getName().isEmpty()) {
+            builder.append(",name=");
+            escape(builder, station.getName());
+        }
+        
+        char separator = ' ';
+        for (Sensor sensor : Sensor.values()) {
+            if (!snapshot.isValid(sensor)) {
+                continue;
+            }
+            
+            builder.append(separator).append(sensor.name()).append('=');
+            appendValue(builder, snapshot.getValue(sensor));
+            separator = ',';
+        }
+        
+        // nanoseconds, the default precision of the protocol
+        builder.append(' ').append(snapshot.getTimestamp()).append("000000\n");
+        return builder.toString();
+    }
+    
+    private static void appendValue(StringBuilder builder, double value) {
+        long integral = (long) value;
+        
+        // whole numbers without ".0", still written as floats so the field type never changes
+        if ((integral == value) && (Math.abs(integral) < (1L << 53))) {
+            builder.append(integral);
+        } else {
+            builder.append(value);
+        }
+    }
+    
+    /**
+     * Escapes a tag value, commas, equal signs and spaces are preceded by a backslash.
+     */
+    private static void escape(StringBuilder builder, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            
+            if ((c == ',') || (c == '=') || (c == ' ')) {
+                builder.append('\\');
+            }
+            
+            builder.append(c);
+        }
+    }
+    
+}
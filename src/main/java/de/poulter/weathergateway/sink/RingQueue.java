@@ -0,0 +1,133 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for any number of producers and consumers, after
+ * Dmitry Vyukov's array queue. Every slot has a sequence which tells whether
+ * it is free for the producer or filled for the consumer of a given position,
+ * so neither side ever waits for the other. Offering to a full queue fails.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class RingQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    
+    // next position to take from and to put to
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    
+    /**
+     * Creates a queue for at least capacity elements, rounded up to a power of two.
+     */
+    RingQueue(int capacity) {
+        if ((capacity < 1) || (capacity > (1 << 30))) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+    
+    /**
+     * Adds the element and returns true, or returns false at once if the queue is full.
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                
+            } else if (difference < 0) {
+                // the slot still holds the element of the previous round
+                return false;
+            }
+            
+            position = tail.get();
+        }
+    }
+    
+    /**
+     * Removes and returns the oldest element, or null if the queue is empty.
+     */
+    E poll() {
+        long position = head.get();
+        
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                
+            } else if (difference < 0) {
+                return null;
+            }
+            
+            position = head.get();
+        }
+    }
+    
+    /**
+     * The number of elements, only an estimate while other threads use the queue.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+    
+    boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    int capacity() {
+        return mask + 1;
+    }
+    
+}
@@ -0,0 +1,290 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import io.micrometer.core.instrument.Counter;
+
+/**
+ * Forwards readings to one downstream system on its own thread. Readings are
+ * taken from a bounded lock-free queue, so offering never blocks the publisher
+ * and a full queue drops the reading. They are sent in batches, either when a
+ * batch is full or when its first reading waited for the batching window.
+ * A batch which can not be delivered is spilled to disk and the sink backs off
+ * exponentially. Until the spill file is replayed, new batches are spilled
+ * behind it, so the order of the readings is kept. Spilled batches are replayed
+ * ahead of every new batch, so the file drains even if the queue never does.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+class Sink implements Runnable, Closeable {
+
+    private static final Logger log = LogManager.getLogger(Sink.class);
+    
+    private static final long CLOSE_TIMEOUT = 5000;
+    
+    // spilled batches replayed per new batch, more than one so the spill file shrinks under load
+    private static final int REPLAYS_PER_BATCH = 2;
+    
+    private final String name;
+    private final SinkTransport transport;
+    private final RingQueue<Reading> queue;
+    private final int batchSize;
+    private final long window;
+    
+    private final Counter sentBatches;
+    private final Counter spilledBatches;
+    private final Counter dropped;
+    
+    private long minDelay = 1000;
+    private long maxDelay = 300000;
+    private Spool spool;
+    
+    private volatile boolean running;
+    private Thread thread;
+    
+    // only accessed by the sink thread
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private int count;
+    private long batchStarted;
+    private int failures;
+    private long nextAttempt;
+    
+    Sink(String name, SinkTransport transport, int capacity, int batchSize, long window, GatewayMetrics metrics) {
+        this.name = name;
+        this.transport = transport;
+        this.queue = new RingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.window = window;
+        
+        this.sentBatches = metrics.getSinkBatchCounter(name, "sent");
+        this.spilledBatches = metrics.getSinkBatchCounter(name, "spilled");
+        this.dropped = metrics.getSinkDropCounter(name);
+    }
+    
+    /**
+     * Sets the delay before the first retry, it doubles with every failure up to maxDelay.
+     */
+    void setRetryDelay(long minDelay, long maxDelay) {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+    }
+    
+    /**
+     * Sets the spill file, without one undeliverable batches are dropped.
+     */
+    void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+    
+    void start() {
+        running = true;
+        
+        thread = new Thread(this, "sink-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Queues the reading, returns false if the queue is full and the reading was dropped.
+     */
+    boolean offer(Reading reading) {
+        if (!queue.offer(reading)) {
+            dropped.increment();
+            return false;
+        }
+        
+        // a full batch is sent at once, otherwise the window wakes the thread
+        if ((queue.size() >= batchSize) && (thread != null)) {
+            LockSupport.unpark(thread);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public void run() {
+        while (running || !queue.isEmpty() || (count > 0)) {
+            try {
+                process(System.currentTimeMillis());
+                
+            } catch (RuntimeException ex) {
+                // the thread must survive, the current batch is lost
+                log.error("Sink " + name + " failed, dropping " + count + " readings.", ex);
+                dropped.increment(count);
+                batch.reset();
+                count = 0;
+                
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(minDelay));
+            }
+        }
+    }
+    
+    private void process(long now) {
+        Reading reading;
+        while ((count < batchSize) && ((reading = queue.poll()) != null)) {
+            byte[] line;
+            try {
+                line = reading.getLine();
+                
+            } catch (RuntimeException ex) {
+                log.error("Unable to render reading of station " + reading.getStation() + " for sink " + name + ".", ex);
+                dropped.increment();
+                continue;
+            }
+            
+            if (count == 0) {
+                batchStarted = now;
+            }
+            
+            batch.write(line, 0, line.length);
+            count++;
+        }
+        
+        if ((count >= batchSize) || ((count > 0) && (!running || (now - batchStarted >= window)))) {
+            for (int i = 0; (i < REPLAYS_PER_BATCH) && hasSpilled() && (now >= nextAttempt); i++) {
+                replay(now);
+            }
+            
+            deliver(batch.toByteArray(), count, now);
+            batch.reset();
+            count = 0;
+            
+        } else if (hasSpilled() && (now >= nextAttempt)) {
+            replay(now);
+            
+        } else {
+            long wait = (count > 0) ? (batchStarted + window - now) : window;
+            if (hasSpilled()) {
+                wait = Math.min(wait, nextAttempt - now);
+            }
+            
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, wait)));
+        }
+    }
+    
+    private void deliver(byte[] lines, int readings, long now) {
+        if (!hasSpilled() && (now >= nextAttempt)) {
+            try {
+                transport.send(lines);
+                sentBatches.increment();
+                failures = 0;
+                return;
+                
+            } catch (IOException | RuntimeException ex) {
+                failed(ex, now);
+            }
+        }
+        
+        spill(lines, readings);
+    }
+    
+    private void replay(long now) {
+        try {
+            byte[] spilled = spool.peek();
+            if (spilled == null) {
+                return;
+            }
+            
+            transport.send(spilled);
+            spool.remove();
+            sentBatches.increment();
+            failures = 0;
+            
+            if (spool.isEmpty()) {
+                log.info("Sink " + name + " replayed all spilled batches.");
+            }
+            
+        } catch (IOException | RuntimeException ex) {
+            failed(ex, now);
+        }
+    }
+    
+    private void failed(Exception ex, long now) {
+        failures++;
+        
+        long delay = minDelay << Math.min(failures - 1, 20);
+        nextAttempt = now + Math.min(delay, maxDelay);
+        
+        log.warn("Sink " + name + " failed " + failures + " times, retrying in " + (nextAttempt - now) + " ms: " + ex.getMessage());
+    }
+    
+    private void spill(byte[] lines, int readings) {
+        try {
+            if ((spool != null) && spool.append(lines)) {
+                spilledBatches.increment();
+                return;
+            }
+            
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Unable to spill batch of sink " + name + ".", ex);
+        }
+        
+        dropped.increment(readings);
+    }
+    
+    private boolean hasSpilled() {
+        return (spool != null) && !spool.isEmpty();
+    }
+    
+    /**
+     * Stops the thread after it delivered or spilled the queued readings.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            
+            try {
+                thread.join(CLOSE_TIMEOUT);
+                
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        transport.close();
+        
+        if (spool != null) {
+            spool.close();
+        }
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    @Override
+    public String toString() {
+        return name + " (" + transport + ")";
+    }
+    
+}
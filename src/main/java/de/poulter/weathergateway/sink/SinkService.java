@@ -0,0 +1,188 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.SnapshotListener;
+import de.poulter.weathergateway.station.Station;
+
+/**
+ * Forwards every new snapshot to the configured sinks: an append-only file
+ * (sink.file), an HTTP endpoint (sink.http) and a UDP listener (sink.udp, as
+ * host:port), each as InfluxDB line protocol. A sink is enabled by setting its
+ * target. Every sink batches, retries and spills on its own thread, so a slow
+ * or dead sink neither blocks polling nor delays the other sinks.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class SinkService implements SnapshotListener, InitializingBean, DisposableBean {
+
+    private static final Logger log = LogManager.getLogger(SinkService.class);
+    
+    private volatile List<Sink> sinks = Collections.emptyList();
+    
+    @Autowired
+    private GatewayMetrics metrics;
+    
+    @Value("${sink.queue}")
+    private Integer queueSize;
+    
+    @Value("${sink.retry.min}")
+    private Long minDelay;
+    
+    @Value("${sink.retry.max}")
+    private Long maxDelay;
+    
+    @Value("${sink.spill.directory}")
+    private String spillDirectory;
+    
+    @Value("${sink.spill.max}")
+    private Long spillMax;
+    
+    @Value("${sink.file}")
+    private String file;
+    
+    @Value("${sink.file.batch}")
+    private Integer fileBatch;
+    
+    @Value("${sink.file.window}")
+    private Long fileWindow;
+    
+    @Value("${sink.http}")
+    private String http;
+    
+    @Value("${sink.http.batch}")
+    private Integer httpBatch;
+    
+    @Value("${sink.http.window}")
+    private Long httpWindow;
+    
+    @Value("${sink.http.timeout}")
+    private Long httpTimeout;
+    
+    @Value("${sink.udp}")
+    private String udp;
+    
+    @Value("${sink.udp.batch}")
+    private Integer udpBatch;
+    
+    @Value("${sink.udp.window}")
+    private Long udpWindow;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        List<Sink> created = new ArrayList<>();
+        
+        if (isSet(file)) {
+            created.add(create("file", new FileTransport(Paths.get(file)), fileBatch, fileWindow));
+        }
+        
+        if (isSet(http)) {
+            created.add(create("http", new HttpTransport(URI.create(http), Duration.ofMillis(httpTimeout)), httpBatch, httpWindow));
+        }
+        
+        if (isSet(udp)) {
+            created.add(create("udp", new UdpTransport(parseAddress(udp)), udpBatch, udpWindow));
+        }
+        
+        for (Sink sink : created) {
+            sink.start();
+            log.info("Forwarding snapshots to sink " + sink + ".");
+        }
+        
+        sinks = Collections.unmodifiableList(created);
+    }
+    
+    private Sink create(String name, SinkTransport transport, int batchSize, long window) throws IOException {
+        Sink sink = new Sink(name, transport, queueSize, batchSize, window, metrics);
+        sink.setRetryDelay(minDelay, maxDelay);
+        
+        if (isSet(spillDirectory)) {
+            sink.setSpool(new Spool(Paths.get(spillDirectory, name + ".spill"), spillMax));
+        }
+        
+        return sink;
+    }
+    
+    private static boolean isSet(String value) {
+        return (value != null) && !value.trim().isEmpty();
+    }
+    
+    static InetSocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Expected host:port: " + address);
+        }
+        
+        try {
+            return new InetSocketAddress(address.substring(0, separator).trim(), Integer.parseInt(address.substring(separator + 1).trim()));
+            
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid port: " + address, ex);
+        }
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        for (Sink sink : sinks) {
+            try {
+                sink.close();
+                
+            } catch (IOException ex) {
+                log.warn("Unable to close sink " + sink + ".", ex);
+            }
+        }
+    }
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        List<Sink> current = sinks;
+        if (current.isEmpty() || (snapshot.getValidMask() == 0L)) {
+            return;
+        }
+        
+        // rendered later by the sink threads, the publishing thread only queues
+        Reading reading = new Reading(station, snapshot);
+        
+        for (Sink sink : current) {
+            sink.offer(reading);
+        }
+    }
+    
+}
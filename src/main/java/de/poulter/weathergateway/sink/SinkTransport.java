@@ -0,0 +1,41 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers batches of line protocol lines to one downstream system.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+interface SinkTransport extends Closeable {
+
+    /**
+     * Delivers the batch completely or throws, then it is spilled and retried later.
+     */
+    void send(byte[] batch) throws IOException;
+    
+    @Override
+    default void close() throws IOException {
+    }
+    
+}
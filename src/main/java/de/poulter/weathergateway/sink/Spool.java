@@ -0,0 +1,222 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The spill file of a sink, it takes the batches a sink could not deliver and
+ * hands them out again in the same order. Every batch is stored with its length
+ * in front. Only the batches not replayed yet count against the maximum size;
+ * the replayed ones are cut off the file once they make up most of it, and the
+ * file is emptied once all batches were replayed. A file left by a previous run
+ * is replayed as well, so a batch may be delivered twice but is not lost. Only
+ * used by the thread of the sink.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class Spool implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(Spool.class);
+    
+    private static final int HEADER_LENGTH = 4;
+    
+    // replayed bytes are only cut off the file in chunks of at least this size
+    private static final int COMPACT_LENGTH = 65536;
+    
+    private final Path file;
+    private final long maxSize;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    
+    private FileChannel channel;
+    private long size;
+    
+    // start of the next batch to replay and the length of the batch returned by peek
+    private long readPosition;
+    private int peeked = -1;
+    
+    Spool(Path file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        
+        if (Files.exists(file)) {
+            open();
+            size = channel.size();
+            
+            if (size > 0) {
+                log.info("Found " + size + " bytes of undelivered batches in " + file + ".");
+            }
+        }
+    }
+    
+    private void open() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+    
+    /**
+     * Appends the batch, returns false if that would exceed the maximum size of the file.
+     */
+    boolean append(byte[] batch) throws IOException {
+        if (getSize() + HEADER_LENGTH + batch.length > maxSize) {
+            return false;
+        }
+        
+        open();
+        
+        if (size + HEADER_LENGTH + batch.length > maxSize) {
+            compact();
+        }
+        
+        header.clear();
+        header.putInt(batch.length).flip();
+        write(header, size);
+        write(ByteBuffer.wrap(batch), size + HEADER_LENGTH);
+        
+        size += HEADER_LENGTH + batch.length;
+        return true;
+    }
+    
+    /**
+     * Returns the oldest batch without removing it, or null if there is none.
+     */
+    byte[] peek() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+        
+        header.clear();
+        read(header, readPosition);
+        int length = header.flip().getInt();
+        
+        if ((length < 0) || (readPosition + HEADER_LENGTH + length > size)) {
+            // e.g. the last batch was cut off by a crash
+            log.warn("Dropping " + (size - readPosition) + " unreadable bytes of " + file + ".");
+            clear();
+            return null;
+        }
+        
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        read(batch, readPosition + HEADER_LENGTH);
+        peeked = length;
+        
+        return batch.array();
+    }
+    
+    /**
+     * Removes the batch returned by the last {@link #peek()}.
+     */
+    void remove() throws IOException {
+        if (peeked < 0) {
+            throw new IllegalStateException("No batch peeked.");
+        }
+        
+        readPosition += HEADER_LENGTH + peeked;
+        peeked = -1;
+        
+        if (readPosition >= size) {
+            clear();
+            
+        } else if ((readPosition >= COMPACT_LENGTH) && (readPosition > size - readPosition)) {
+            compact();
+        }
+    }
+    
+    /**
+     * Moves the batches not replayed yet to the start of the file.
+     */
+    private void compact() throws IOException {
+        if (readPosition == 0) {
+            return;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COMPACT_LENGTH, size - readPosition));
+        long remaining = size - readPosition;
+        
+        // the target is always before the source, so copying forward is safe
+        for (long moved = 0; moved < remaining; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining - moved));
+            read(buffer, readPosition + moved);
+            buffer.flip();
+            write(buffer, moved);
+            moved += buffer.limit();
+        }
+        
+        channel.truncate(remaining);
+        size = remaining;
+        readPosition = 0;
+    }
+    
+    private void clear() throws IOException {
+        channel.truncate(0);
+        size = 0;
+        readPosition = 0;
+        peeked = -1;
+    }
+    
+    boolean isEmpty() {
+        return readPosition >= size;
+    }
+    
+    /**
+     * The bytes waiting to be replayed.
+     */
+    long getSize() {
+        return size - readPosition;
+    }
+    
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + file + ".");
+            }
+            
+            position += read;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+    
+}
@@ -0,0 +1,105 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends the batches as UDP datagrams, e.g. to the UDP listener of InfluxDB or
+ * Telegraf. A batch is split at line ends, so no line is split over datagrams.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class UdpTransport implements SinkTransport {
+
+    // fits into one ethernet frame
+    static final int MAX_DATAGRAM = 1400;
+    
+    private final InetSocketAddress target;
+    private DatagramChannel channel;
+    
+    UdpTransport(InetSocketAddress target) {
+        this.target = target;
+    }
+    
+    @Override
+    public void send(byte[] batch) throws IOException {
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.connect(target);
+        }
+        
+        try {
+            for (int start = 0; start < batch.length; ) {
+                int end = datagramEnd(batch, start);
+                channel.write(ByteBuffer.wrap(batch, start, end - start));
+                start = end;
+            }
+            
+        } catch (IOException ex) {
+            // e.g. port unreachable, a new channel forgets about it
+            close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Returns the end of the last complete line which fits into a datagram starting
+     * at start, or the end of the first line if that alone is too long.
+     */
+    static int datagramEnd(byte[] batch, int start) {
+        int limit = Math.min(batch.length, start + MAX_DATAGRAM);
+        if (limit == batch.length) {
+            return limit;
+        }
+        
+        for (int pos = limit - 1; pos >= start; pos--) {
+            if (batch[pos] == '\n') {
+                return pos + 1;
+            }
+        }
+        
+        for (int pos = limit; pos < batch.length; pos++) {
+            if (batch[pos] == '\n') {
+                return pos + 1;
+            }
+        }
+        
+        return batch.length;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            DatagramChannel closing = channel;
+            channel = null;
+            closing.close();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return target.toString();
+    }
+    
+}
@@ -0,0 +1,43 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+/**
+ * How the values of a sensor are combined into one value per time bucket.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public enum Aggregation {
+
+    /** arithmetic mean of all values */
+    MEAN,
+    
+    /** sum of the increments of a cumulative counter, a counter reset counts from zero */
+    DELTA_SUM,
+    
+    /** direction of the mean unit vector of all angles in degree */
+    VECTOR_MEAN,
+    
+    /** largest value, for values which already cover a rolling period and may fall at any time */
+    MAX,
+    ;
+    
+}
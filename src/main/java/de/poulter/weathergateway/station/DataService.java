@@ -21,139 +21,429 @@
 package de.poulter.weathergateway.station;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import de.poulter.weathergateway.GatewayMetrics;
+
 /**
  * @author Christian Poulter <devel@poulter.de>
  */
 @Service
-public class DataService implements InitializingBean {
+public class DataService implements InitializingBean, DisposableBean {
 
     private static final Logger log = LogManager.getLogger(DataService.class);
     
-    private final String SYNC_IPPORT = "SYNC_IPPORT";
-
-    private Map<Sensor, Double> currentValues = new HashMap<>();    
-    private InetAddress ip;
-    private Integer port;
+    private final Map<String, SensorSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, CompletableFuture<SensorSnapshot>> refreshes = new ConcurrentHashMap<>();
+    private final Map<String, DecodePlan> decodePlans = new ConcurrentHashMap<>();
+    private final Map<String, String> firmwareVersions = new ConcurrentHashMap<>();
+    private final Set<String> firmwareRequested = ConcurrentHashMap.newKeySet();
+    
+    private StationPoller poller;
+    private PollScheduler scheduler;
+    
+    @Autowired
+    private StationRegistry stationRegistry;
+    
+    @Autowired
+    private GatewayMetrics metrics;
+    
+    @Autowired
+    private StateStore stateStore;
+    
+    @Autowired
+    private SensorCatalog sensorCatalog;
+    
+    @Autowired(required = false)
+    private List<SnapshotListener> snapshotListeners = Collections.emptyList();
     
     @Value("${data.timeout}")
     private Integer socketTimeout;
+    
+    @Value("${data.rate}")
+    private Long rate;
+    
+    @Value("${data.rate.min}")
+    private Long minRate;
+    
+    @Value("${data.rate.max}")
+    private Long maxRate;
+    
+    @Value("${data.demand}")
+    private Long demandWindow;
         
     @Override
     public void afterPropertiesSet() throws Exception {
-        this.ip = null;
-        this.port = null;
+        restore();
         
-        for (Sensor sensor : Sensor.values()) {
-            currentValues.put(sensor, 0.0);
-        }
+        scheduler = new PollScheduler(minRate, rate, maxRate, demandWindow);
+        
+        poller = new StationPoller(socketTimeout, new StationPoller.ResponseHandler() {
+            
+            @Override
+            public void onResponse(Station station, ByteBuffer payload) {
+                updateValues(station, payload);
+            }
+            
+            @Override
+            public void onFailure(Station station) {
+                scheduler.onFailure(station.getMac());
+                
+                CompletableFuture<SensorSnapshot> refresh = refreshes.remove(station.getMac());
+                if (refresh != null) {
+                    refresh.completeExceptionally(new IOException("Polling station " + station + " failed."));
+                }
+            }
+        }, metrics);
+        poller.start();
+        
+        metrics.registerSnapshotAge(this, DataService::getSnapshotAge);
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        poller.close();
     }
 
-    public void setStation(InetAddress ip, int port) {
-        synchronized(SYNC_IPPORT) {
-            this.ip = ip;
-            this.port = port;
+    /**
+     * Registers the stations known before the restart and serves their last snapshots until they are polled.
+     */
+    private void restore() {
+        for (StateStore.StationState state : stateStore.load()) {
+            stationRegistry.register(state.getStation());
+            snapshots.put(state.getStation().getMac(), state.getSnapshot());
+            
+            // keep sequences (and ETags) unique across restarts
+            sequence.accumulateAndGet(state.getSnapshot().getSequence(), Math::max);
+        }
+    }
+    
+    /**
+     * Returns the latest snapshot of the default station.
+     */
+    public SensorSnapshot getSnapshot() {
+        Station station = stationRegistry.getDefaultStation();
+        return getSnapshot(station != null ? station.getMac() : null);
+    }
+    
+    /**
+     * Returns the latest snapshot of the station. Reading a snapshot counts as
+     * client demand, so the station is polled more often for a while.
+     */
+    public SensorSnapshot getSnapshot(String mac) {
+        if (mac == null) {
+            return SensorSnapshot.EMPTY;
         }
+        
+        registerDemand(mac);
+        
+        SensorSnapshot snapshot = snapshots.get(mac);
+        return (snapshot != null) ? snapshot : SensorSnapshot.EMPTY;
+    }
+    
+    /**
+     * Tells that a client is interested in the station, e.g. by a subscription.
+     */
+    public void registerDemand(String mac) {
+        scheduler.onDemand(mac, System.currentTimeMillis());
+    }
+    
+    /**
+     * Returns the interval the station is currently polled with, or -1 if it is unknown.
+     */
+    public long getPollInterval(String mac) {
+        return scheduler.getInterval(mac, System.currentTimeMillis());
+    }
+    
+    /**
+     * Returns the firmware version reported by the station, or null if it was not read yet.
+     */
+    public String getFirmwareVersion(String mac) {
+        return firmwareVersions.get(mac);
     }
     
-    public void clearStation() {
-        synchronized(SYNC_IPPORT) {
-            this.ip = null;
-            this.port = null;
+    /**
+     * Returns the age in seconds of the oldest snapshot of all known stations.
+     */
+    double getSnapshotAge() {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        
+        for (Station station : stationRegistry.getStations()) {
+            SensorSnapshot snapshot = snapshots.get(station.getMac());
+            if (snapshot != null) {
+                oldest = Math.min(oldest, snapshot.getTimestamp());
+            }
         }
+        
+        return (now - oldest) / 1000.0;
     }
     
-    public Map<Sensor, Double> getCurrentValues() {
-        return Collections.unmodifiableMap(currentValues);
+    /**
+     * Polls the station now and completes with the new snapshot. Concurrent
+     * callers share one poll, so a station never gets more than one request
+     * at a time. Completes exceptionally if the poll fails or times out.
+     * Stations which push their data are not polled, the refresh completes
+     * with their next upload.
+     */
+    public CompletableFuture<SensorSnapshot> refresh(Station station) {
+        CompletableFuture<SensorSnapshot> refresh = refreshes.get(station.getMac());
+        if (refresh != null) {
+            return refresh;
+        }
+        
+        CompletableFuture<SensorSnapshot> created = new CompletableFuture<>();
+        refresh = refreshes.putIfAbsent(station.getMac(), created);
+        if (refresh != null) {
+            return refresh;
+        }
+        
+        // the poller does not answer polls it skips, e.g. while waiting to reconnect
+        created.orTimeout(2L * socketTimeout, TimeUnit.MILLISECONDS);
+        created.whenComplete((snapshot, ex) -> refreshes.remove(station.getMac(), created));
+        
+        if (!station.isPush()) {
+            poller.poll(station);
+        }
+        
+        return created;
     }
     
-    @Scheduled(fixedRateString = "${data.rate}", initialDelayString = "${data.initial}")
+    /**
+     * Polls the stations which are due, the interval of every station is adapted by the {@link PollScheduler}.
+     */
+    @Scheduled(fixedRateString = "${data.tick}", initialDelayString = "${data.initial}")
     public void fetchData() {
-        log.info("Refreshing data from station.");
+        List<Station> stations = stationRegistry.getStations().stream()
+            .filter(station -> !station.isPush())
+            .collect(Collectors.toList());
+        
+        List<Station> due = scheduler.getDue(stations, System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
+        }
+        
+        log.info("Refreshing data from " + due.size() + " stations.");
+        
+        for (Station station : due) {
+            requestFirmwareVersion(station);
+            poller.poll(station);
+        }
+    }
+    
+    /**
+     * Asks a station for its firmware version once. The request is queued right
+     * before the poll, so both go out in one write over the same connection.
+     */
+    private void requestFirmwareVersion(Station station) {
+        String mac = station.getMac();
+        
+        // stations which do not answer are not asked again, a missing answer keeps the connection busy until the timeout
+        if (firmwareVersions.containsKey(mac) || !firmwareRequested.add(mac)) {
+            return;
+        }
+        
+        poller.send(station, StationCommand.VERSION).whenComplete((payload, ex) -> {
+            if (ex != null) {
+                log.warn("Unable to read firmware version of station " + station + ": " + ex.getMessage());
+                return;
+            }
+            
+            String version = parseVersion(payload);
+            firmwareVersions.put(mac, version);
+            
+            log.info("Station " + station + " runs firmware " + version + ".");
+        });
+    }
+    
+    void setFirmwareVersion(String mac, String version) {
+        if (!version.equals(firmwareVersions.put(mac, version))) {
+            log.info("Station " + mac + " runs firmware " + version + ".");
+        }
+    }
+    
+    /**
+     * The version reply holds a string, usually prefixed with its length.
+     */
+    static String parseVersion(byte[] payload) {
+        int start = ((payload.length > 0) && ((payload[0] & 0xFF) == payload.length - 1)) ? 1 : 0;
+        int end = payload.length;
         
-        InetAddress ip = null;
-        Integer port = null;        
-        synchronized(SYNC_IPPORT) {
-            ip = this.ip;
-            port = this.port;
+        while ((end > start) && (payload[end - 1] == 0)) {
+            end--;
         }
         
-        if ((ip != null) && (port != null)) {
-            fetchData(ip, port);
-        }        
+        return new String(payload, start, end - start, StandardCharsets.ISO_8859_1);
     }
 
-    private void fetchData(InetAddress ip, Integer port) {
-        SocketAddress addr = new InetSocketAddress(ip, port);
+    private void updateValues(Station station, ByteBuffer payload) {
+        long started = System.nanoTime();
         
-        log.info("Connecting to station " + ip + ":" + port + ".");
+        // sensors missing in this poll keep their last value, but are not marked as valid
+        SensorSnapshot previous = snapshots.getOrDefault(station.getMac(), SensorSnapshot.EMPTY);
+        double[] values = previous.copyValues();
+        long validMask;
         
-        try (Socket socket = new Socket()) {
-            socket.connect(addr, socketTimeout);
-            socket.setSoTimeout(socketTimeout);
+        DecodePlan plan = decodePlans.get(station.getMac());
+        if ((plan == null) || !plan.matches(payload)) {
+            plan = DecodePlan.learn(payload, sensorCatalog);
             
-            try (InputStream inputStream = socket.getInputStream();
-                 OutputStream outputStream = socket.getOutputStream()
-            ) {                
-                outputStream.write(StationBinaryTools.COMMAND_DATA);
-                
-                byte[] first = new byte[5];
-                int read = inputStream.read(first);
-                
-                if (read < 5) {
-                    log.warn("Not enough data: " + read + " bytes");
-                    throw new IOException("Not enough data");
-                }
-                
-                int len = StationBinaryTools.fromTwoBytesUnsigned(first, 3) - 3;
-                byte[] all = new byte[len + 5];                
-                read = inputStream.read(all, 5, len);                
-                if (read < len) {
-                    log.warn("Not enough data: " + len + "(" + StationBinaryTools.byteArrayToString(first) + ")");
-                    throw new IOException("Not enough data");
-                }
-                
-                System.arraycopy(first, 0, all, 0, first.length);
-                byte[] payload = StationBinaryTools.parse(all, 0x0b, 0x04);
-                
-                for (int pos = 0; pos < payload.length; ) {
-                    int sensorType = StationBinaryTools.fromByteUnsigned(payload, pos++);
-                    Sensor sensor = Sensor.getSensor(sensorType);
-                    
-                    if (sensor != null) {
-                        Double value = sensor.convertValue(payload, pos);
-                        pos += sensor.getSize();
-                        currentValues.put(sensor, value);
-                        
-                    } else {
-                        
-                        log.warn("Unknown sensor index: " + sensorType);
-                    }
-                }
+            if (plan != null) {
+                log.debug("Learned payload layout of station " + station + ", " + plan.getLength() + " bytes.");
+                decodePlans.put(station.getMac(), plan);
+            } else {
+                decodePlans.remove(station.getMac());
+            }
+        }
+        
+        if (plan != null) {
+            validMask = plan.decode(payload, values);
+            countInvalid(plan.getMask() & ~validMask);
+        } else {
+            validMask = decodeRecords(payload, values);
+        }
+        
+        publish(station, previous, values, validMask, started);
+    }
+    
+    /**
+     * Publishes the values uploaded by a station which pushes its data. Snapshots are
+     * only published by the poller thread, so the values are handed over to it.
+     * Returns false if the poller is too busy to take them.
+     */
+    boolean push(Station station, double[] values, long validMask, long invalidMask, long started) {
+        return poller.execute(() -> updateValues(station, values, validMask, invalidMask, started));
+    }
+    
+    /**
+     * Sensors missing in the upload keep their last value, but are not marked as valid.
+     */
+    private void updateValues(Station station, double[] values, long validMask, long invalidMask, long started) {
+        SensorSnapshot previous = snapshots.getOrDefault(station.getMac(), SensorSnapshot.EMPTY);
+        long missingMask = ~(validMask | invalidMask);
+        
+        for (Sensor sensor : Sensor.values()) {
+            if ((missingMask & (1L << sensor.ordinal())) != 0) {
+                values[sensor.ordinal()] = previous.getValue(sensor);
+            }
+        }
+        
+        countInvalid(invalidMask);
+        publish(station, previous, values, validMask, started);
+    }
+    
+    private void publish(Station station, SensorSnapshot previous, double[] values, long validMask, long started) {
+        // publish the complete poll at once
+        SensorSnapshot snapshot = new SensorSnapshot(values, validMask, System.currentTimeMillis(), sequence.incrementAndGet());
+        snapshots.put(station.getMac(), snapshot);
+        metrics.recordDecode(System.nanoTime() - started);
+        
+        if (!station.isPush()) {
+            scheduler.onSuccess(station.getMac(), countChanged(previous, snapshot), Long.bitCount(validMask));
+        }
+        
+        CompletableFuture<SensorSnapshot> refresh = refreshes.remove(station.getMac());
+        if (refresh != null) {
+            refresh.complete(snapshot);
+        }
+        
+        for (SnapshotListener snapshotListener : snapshotListeners) {
+            try {
+                snapshotListener.onSnapshot(station, snapshot);
                 
-            } catch (IOException ex) {
-                log.warn("Error while communication with station.", ex);
+            } catch (RuntimeException ex) {
+                log.error("Snapshot listener " + snapshotListener.getClass().getSimpleName() + " failed.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Walks the payload record by record, used if no {@link DecodePlan} could be learned.
+     * The size of an id which is not in the catalog is not known, so the rest of the
+     * payload is skipped.
+     */
+    private long decodeRecords(ByteBuffer payload, double[] values) {
+        long validMask = 0L;
+        
+        for (int pos = 0; pos < payload.limit(); ) {
+            int sensorType = StationBinaryTools.fromByteUnsigned(payload, pos++);
+            SensorDecoder decoder = sensorCatalog.getDecoder(sensorType);
+            
+            if (decoder == null) {
+                metrics.countUnknownSensor();
+                log.warn("Unknown sensor index: " + sensorType + ", skipping the remaining " + (payload.limit() - pos) + " bytes.");
+                break;
+            }
+            
+            if (pos + decoder.getSize() > payload.limit()) {
+                log.warn("Record of sensor " + decoder.getName() + " is cut off.");
+                break;
+            }
+            
+            Sensor sensor = decoder.getSensor();
+            if (sensor == null) {
+                pos += decoder.getSize();
+                continue;
+            }
+            
+            double value = decoder.decode(payload, pos);
+            pos += decoder.getSize();
+            
+            if (!Sensor.isValid(value)) {
+                metrics.countInvalidValue(sensor);
+                values[sensor.ordinal()] = 0.0;
+                continue;
             }
             
-        } catch (IOException ex) {
-            log.warn("Unable to create socket.", ex);
+            values[sensor.ordinal()] = value;
+            validMask |= 1L << sensor.ordinal();
         }
+        
+        return validMask;
+    }
+    
+    private void countInvalid(long invalidMask) {
+        if (invalidMask == 0L) {
+            return;
+        }
+        
+        for (Sensor sensor : Sensor.values()) {
+            if ((invalidMask & (1L << sensor.ordinal())) != 0) {
+                metrics.countInvalidValue(sensor);
+            }
+        }
+    }
+    
+    private int countChanged(SensorSnapshot previous, SensorSnapshot snapshot) {
+        int changed = 0;
+        
+        for (Sensor sensor : Sensor.values()) {
+            if (snapshot.isValid(sensor) && (!previous.isValid(sensor) || (previous.getValue(sensor) != snapshot.getValue(sensor)))) {
+                changed++;
+            }
+        }
+        
+        return changed;
     }
     
 //    This would dump current data to logfile.
@@ -161,8 +451,9 @@ public class DataService implements InitializingBean {
 //    @Scheduled(fixedRate=10000)
 //    public void cw() {
 //        log.info("--- Werte ---------");
-//        for (Sensor sensor : currentValues.keySet().stream().sorted().collect(Collectors.toList())) {
-//            log.info("Sensor " + sensor.name() + ": " + currentValues.get(sensor) + " " + sensor.getUnit() + ".");
+//        SensorSnapshot snapshot = getSnapshot();
+//        for (Sensor sensor : Sensor.values()) {
+//            log.info("Sensor " + sensor.name() + ": " + snapshot.getValue(sensor) + " " + sensor.getUnit() + ".");
 //        }
 //        log.info("-------------------");
 //    }
@@ -0,0 +1,140 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The layout of the data payload of one station. A station sends its sensors
+ * in the same order every time, so once the layout is known the values are
+ * read from fixed offsets instead of walking the records one by one.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class DecodePlan {
+
+    private final int length;
+    private final SensorDecoder[] decoders;
+    private final int[] offsets;
+    private final byte[] ids;
+    private final long mask;
+    
+    private DecodePlan(int length, List<SensorDecoder> decoders, List<Integer> offsets) {
+        this.length = length;
+        this.decoders = decoders.toArray(new SensorDecoder[0]);
+        this.offsets = new int[offsets.size()];
+        this.ids = new byte[offsets.size()];
+        
+        long mask = 0L;
+        for (int i = 0; i < this.decoders.length; i++) {
+            this.offsets[i] = offsets.get(i);
+            this.ids[i] = (byte) this.decoders[i].getId();
+            
+            Sensor sensor = this.decoders[i].getSensor();
+            if (sensor != null) {
+                mask |= 1L << sensor.ordinal();
+            }
+        }
+        
+        this.mask = mask;
+    }
+    
+    /**
+     * Learns the layout of the payload, returns null if it contains an id
+     * which is not in the catalog, so the payload has to be walked record by
+     * record.
+     */
+    static DecodePlan learn(ByteBuffer payload, SensorCatalog catalog) {
+        List<SensorDecoder> decoders = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        
+        for (int pos = 0; pos < payload.limit(); ) {
+            SensorDecoder decoder = catalog.getDecoder(StationBinaryTools.fromByteUnsigned(payload, pos++));
+            if ((decoder == null) || (pos + decoder.getSize() > payload.limit())) {
+                return null;
+            }
+            
+            decoders.add(decoder);
+            offsets.add(pos);
+            pos += decoder.getSize();
+        }
+        
+        return new DecodePlan(payload.limit(), decoders, offsets);
+    }
+    
+    /**
+     * Checks that the payload still has the learned layout.
+     */
+    boolean matches(ByteBuffer payload) {
+        if (payload.limit() != length) {
+            return false;
+        }
+        
+        for (int i = 0; i < offsets.length; i++) {
+            if (payload.get(offsets[i] - 1) != ids[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Decodes the values of a matching payload into the array indexed by
+     * sensor ordinal, invalid values are set to 0.0. Returns the mask of the
+     * valid values.
+     */
+    long decode(ByteBuffer payload, double[] values) {
+        long validMask = 0L;
+        
+        for (int i = 0; i < decoders.length; i++) {
+            Sensor sensor = decoders[i].getSensor();
+            if (sensor == null) {
+                continue;
+            }
+            
+            double value = decoders[i].decode(payload, offsets[i]);
+            
+            if (Sensor.isValid(value)) {
+                values[sensor.ordinal()] = value;
+                validMask |= 1L << sensor.ordinal();
+            } else {
+                values[sensor.ordinal()] = 0.0;
+            }
+        }
+        
+        return validMask;
+    }
+    
+    /**
+     * Returns the mask of all published sensors in the layout.
+     */
+    long getMask() {
+        return mask;
+    }
+    
+    int getLength() {
+        return length;
+    }
+    
+}
@@ -0,0 +1,87 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class HistoryService implements SnapshotListener, StationListener {
+
+    private final Map<String, SensorHistory> histories = new ConcurrentHashMap<>();
+    
+    @Value("${history.capacity}")
+    private Integer capacity;
+    
+    @Autowired
+    private HistoryStore historyStore;
+    
+    @Autowired
+    private StationRegistry stationRegistry;
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        histories.computeIfAbsent(station.getMac(), mac -> new SensorHistory(capacity)).append(snapshot);
+    }
+    
+    /**
+     * Releases the buffer of the station, older values are still answered by the store.
+     */
+    @Override
+    public void onExpired(Station station) {
+        histories.remove(station.getMac());
+    }
+    
+    /**
+     * Returns if the station is known, either in memory, in the registry or in the store.
+     */
+    public boolean hasHistory(String mac) {
+        return histories.containsKey(mac) 
+            || (stationRegistry.getStation(mac) != null) 
+            || (historyStore.isEnabled() && historyStore.hasHistory(mac));
+    }
+    
+    /**
+     * Answers from memory if possible and falls back to the store for older values.
+     */
+    public SensorSeries query(String mac, Sensor sensor, long from, long to, long step) {
+        SensorHistory history = histories.get(mac);
+        
+        if ((history != null) && ((history.getOldestTimestamp() <= from) || !historyStore.isEnabled())) {
+            return history.query(sensor, from, to, step);
+        }
+        
+        SensorSeries series = new SensorSeries(0, from, step);
+        if (historyStore.isEnabled()) {
+            historyStore.query(mac, sensor, from, to, series);
+        }
+        
+        return series;
+    }
+    
+}
@@ -0,0 +1,271 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Persists every snapshot into append only, memory mapped column files.
+ * There is one directory per station and one segment per day (UTC); the
+ * segments of a station are indexed by their day, so a range read only
+ * opens the segments it needs.
+ * 
+ * Snapshots are handed over to a writer thread, the polling thread never
+ * waits for the disk. The segments of past days are read only, the last
+ * ones read stay mapped.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class HistoryStore implements SnapshotListener, InitializingBean, DisposableBean, Runnable {
+
+    private static final Logger log = LogManager.getLogger(HistoryStore.class);
+    
+    private static final long DAY = 86400000L;
+    private static final int QUEUE_SIZE = 10000;
+    private static final int CACHED_SEGMENTS = 16;
+    private static final Entry STOP = new Entry(null, null);
+    
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, NavigableMap<Long, Path>> index = new ConcurrentHashMap<>();
+    private final Map<String, StorageSegment> currentSegments = new ConcurrentHashMap<>();
+    
+    private final Map<Path, StorageSegment> readSegments = new LinkedHashMap<>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, StorageSegment> eldest) {
+            return size() > CACHED_SEGMENTS;
+        }
+    };
+    
+    private volatile boolean running;
+    private Thread thread;
+    private Path root;
+    
+    @Value("${storage.enabled}")
+    private Boolean enabled;
+    
+    @Value("${storage.directory}")
+    private String directory;
+    
+    @Value("${storage.rows}")
+    private Integer rows;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+        buildIndex();
+        
+        running = true;
+        thread = new Thread(this, "history-store");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if (thread == null) {
+            return;
+        }
+        
+        // the writer ends after the queued snapshots, an interrupt could close the mapped files
+        running = false;
+        if (queue.offer(STOP, 5, TimeUnit.SECONDS)) {
+            thread.join(5000);
+        } else {
+            log.warn("Storage queue is still full, closing without the queued snapshots.");
+        }
+        
+        currentSegments.values().forEach(StorageSegment::force);
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Returns if there are stored days of the station.
+     */
+    public boolean hasHistory(String mac) {
+        NavigableMap<Long, Path> segments = index.get(mac);
+        return (segments != null) && !segments.isEmpty();
+    }
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        if (!running) {
+            return;
+        }
+        
+        if (!queue.offer(new Entry(station.getMac(), snapshot))) {
+            log.warn("Storage queue is full, dropping snapshot of station " + station + ".");
+        }
+    }
+    
+    @Override
+    public void run() {
+        try {
+            Entry entry;
+            while ((entry = queue.take()) != STOP) {
+                write(entry.mac, entry.snapshot);
+            }
+            
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void write(String mac, SensorSnapshot snapshot) {
+        long day = dayOf(snapshot.getTimestamp());
+        
+        try {
+            StorageSegment segment = currentSegments.get(mac);
+            Path segmentDirectory = root.resolve(mac).resolve(LocalDate.ofEpochDay(day / DAY).toString());
+            
+            if ((segment == null) || !segment.getDirectory().equals(segmentDirectory)) {
+                if (segment != null) {
+                    segment.force();
+                }
+                
+                // a late snapshot might reopen a past day, its read only mapping is outdated then
+                synchronized (readSegments) {
+                    readSegments.remove(segmentDirectory);
+                }
+                
+                segment = StorageSegment.open(segmentDirectory, rows, true);
+                currentSegments.put(mac, segment);
+                index.computeIfAbsent(mac, m -> new ConcurrentSkipListMap<>()).put(day, segmentDirectory);
+            }
+            
+            if (!segment.append(snapshot)) {
+                log.warn("Segment " + segmentDirectory + " is full, dropping snapshot.");
+            }
+            
+        } catch (IOException ex) {
+            log.error("Unable to store snapshot of station " + mac + ".", ex);
+        }
+    }
+    
+    /**
+     * Reads all valid values between from and to (inclusive) into the series.
+     */
+    public void query(String mac, Sensor sensor, long from, long to, SensorSeries series) {
+        NavigableMap<Long, Path> segments = index.get(mac);
+        if (segments == null) {
+            return;
+        }
+        
+        StorageSegment current = currentSegments.get(mac);
+        
+        for (Path segmentDirectory : segments.subMap(dayOf(from), true, dayOf(to), true).values()) {
+            try {
+                StorageSegment segment = ((current != null) && current.getDirectory().equals(segmentDirectory)) 
+                    ? current 
+                    : openReadOnly(segmentDirectory);
+                
+                segment.read(sensor, from, to, series);
+                
+            } catch (IOException ex) {
+                log.warn("Unable to read segment " + segmentDirectory + ".", ex);
+            }
+        }
+    }
+    
+    private StorageSegment openReadOnly(Path segmentDirectory) throws IOException {
+        synchronized (readSegments) {
+            StorageSegment segment = readSegments.get(segmentDirectory);
+            if (segment == null) {
+                segment = StorageSegment.open(segmentDirectory, rows, false);
+                readSegments.put(segmentDirectory, segment);
+            }
+            
+            return segment;
+        }
+    }
+    
+    private void buildIndex() throws IOException {
+        try (DirectoryStream<Path> stations = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path station : stations) {
+                NavigableMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+                
+                try (DirectoryStream<Path> days = Files.newDirectoryStream(station, Files::isDirectory)) {
+                    for (Path day : days) {
+                        try {
+                            long start = LocalDate.parse(day.getFileName().toString()).atStartOfDay().toEpochSecond(ZoneOffset.UTC) * 1000;
+                            segments.put(start, day);
+                            
+                        } catch (DateTimeParseException ex) {
+                            log.warn("Ignoring unknown directory " + day + ".");
+                        }
+                    }
+                }
+                
+                index.put(station.getFileName().toString(), segments);
+                log.info("Found " + segments.size() + " stored days for station " + station.getFileName() + ".");
+            }
+        }
+    }
+    
+    private static long dayOf(long timestamp) {
+        return Math.floorDiv(timestamp, DAY) * DAY;
+    }
+    
+    private static class Entry {
+        
+        private final String mac;
+        private final SensorSnapshot snapshot;
+        
+        private Entry(String mac, SensorSnapshot snapshot) {
+            this.mac = mac;
+            this.snapshot = snapshot;
+        }
+    }
+    
+}
@@ -0,0 +1,167 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides per station when it is polled next. The interval shrinks while
+ * the values change fast and grows while they stay the same. While clients
+ * read a station it is polled at the minimum interval, after failures the
+ * interval grows exponentially. It always stays between min and max.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+class PollScheduler {
+
+    private static final double SHORTEN = 0.5;
+    private static final double LENGTHEN = 1.5;
+    
+    // changed sensors per valid sensor, from which on the values change fast
+    private static final double FAST_CHANGE = 0.25;
+    
+    private final long minInterval;
+    private final long baseInterval;
+    private final long maxInterval;
+    private final long demandWindow;
+    private final Map<String, PollState> states = new ConcurrentHashMap<>();
+    
+    public PollScheduler(long minInterval, long baseInterval, long maxInterval, long demandWindow) {
+        this.minInterval = minInterval;
+        this.baseInterval = Math.max(minInterval, Math.min(baseInterval, maxInterval));
+        this.maxInterval = maxInterval;
+        this.demandWindow = demandWindow;
+    }
+    
+    /**
+     * Returns the stations which are due and counts them as polled. States of
+     * stations no longer given are dropped.
+     */
+    public List<Station> getDue(Collection<Station> stations, long now) {
+        List<Station> due = new ArrayList<>();
+        Set<String> macs = new HashSet<>();
+        
+        for (Station station : stations) {
+            macs.add(station.getMac());
+            
+            PollState state = states.computeIfAbsent(station.getMac(), mac -> new PollState(baseInterval));
+            if (state.startIfDue(now)) {
+                due.add(station);
+            }
+        }
+        
+        states.keySet().retainAll(macs);
+        return due;
+    }
+    
+    public void onDemand(String mac, long now) {
+        PollState state = states.get(mac);
+        if (state != null) {
+            state.lastDemand = now;
+        }
+    }
+    
+    /**
+     * Adapts the interval to the share of sensors whose value changed with the last poll.
+     */
+    public void onSuccess(String mac, int changed, int valid) {
+        PollState state = states.get(mac);
+        if (state != null) {
+            state.succeeded(changed, valid);
+        }
+    }
+    
+    public void onFailure(String mac) {
+        PollState state = states.get(mac);
+        if (state != null) {
+            state.failed();
+        }
+    }
+    
+    /**
+     * Returns the interval the station is currently polled with, or -1 if it is unknown.
+     */
+    public long getInterval(String mac, long now) {
+        PollState state = states.get(mac);
+        return (state != null) ? state.getEffectiveInterval(now) : -1;
+    }
+    
+    private long clamp(double interval) {
+        return Math.max(minInterval, Math.min(maxInterval, (long) interval));
+    }
+    
+    private class PollState {
+        
+        private long interval;
+        private long lastPoll = Long.MIN_VALUE;
+        private int failures;
+        private volatile long lastDemand = Long.MIN_VALUE;
+        
+        private PollState(long interval) {
+            this.interval = interval;
+        }
+        
+        private synchronized boolean startIfDue(long now) {
+            if ((lastPoll != Long.MIN_VALUE) && (now - lastPoll < getEffectiveInterval(now))) {
+                return false;
+            }
+            
+            lastPoll = now;
+            return true;
+        }
+        
+        private synchronized void succeeded(int changed, int valid) {
+            if (failures > 0) {
+                failures = 0;
+                interval = baseInterval;
+                
+            } else if ((valid > 0) && (changed >= valid * FAST_CHANGE)) {
+                interval = clamp(interval * SHORTEN);
+                
+            } else if (changed == 0) {
+                interval = clamp(interval * LENGTHEN);
+            }
+        }
+        
+        private synchronized void failed() {
+            failures++;
+        }
+        
+        private synchronized long getEffectiveInterval(long now) {
+            if (failures > 0) {
+                return clamp((double) baseInterval * (1L << Math.min(failures, 20)));
+            }
+            
+            if ((lastDemand != Long.MIN_VALUE) && (now - lastDemand < demandWindow)) {
+                return minInterval;
+            }
+            
+            return interval;
+        }
+    }
+    
+}
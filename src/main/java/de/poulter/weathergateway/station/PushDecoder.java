@@ -0,0 +1,391 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.station;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the uploads of stations which push their data, either a form posted
+ * with the Ecowitt protocol or the query of the Wunderground protocol. Field
+ * names are looked up byte by byte in a fixed table and the values are parsed
+ * and converted straight into the sensor values, without a map of the fields.
+ * Values are converted to the units of the polled stations.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class PushDecoder {
+
+    private static final double HPA_PER_INHG = 33.8639;
+    private static final double KMH_PER_MPH = 1.609344;
+    private static final double MM_PER_INCH = 25.4;
+    private static final double LUX_PER_WM2 = 126.7;
+    
+    // Wunderground uploads -9999 for sensors which are not connected
+    private static final double MISSING = -9999.0;
+    
+    private static final int MAX_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[MAX_DIGITS + 1];
+    
+    private static final int TABLE_SIZE = 128;
+    private static final Field[] TABLE = new Field[TABLE_SIZE];
+    
+    private enum Target {
+        SENSOR,
+        KEY,
+        MODEL,
+        FIRMWARE,
+    }
+    
+    private enum Conversion {
+        NONE,
+        FAHRENHEIT,
+        INHG,
+        MPH,
+        INCH,
+        WM2,
+    }
+    
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i <= MAX_DIGITS; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+        
+        // Ecowitt
+        add("PASSKEY", Target.KEY);
+        add("model", Target.MODEL);
+        add("stationtype", Target.FIRMWARE);
+        add("tempinf", Sensor.RoomTemperature, Conversion.FAHRENHEIT);
+        add("humidityin", Sensor.RoomHumidity, Conversion.NONE);
+        add("baromrelin", Sensor.BarometricPressureRelative, Conversion.INHG);
+        add("baromabsin", Sensor.BarometricPressureAbsolute, Conversion.INHG);
+        add("tempf", Sensor.OutsideTemperature, Conversion.FAHRENHEIT);
+        add("humidity", Sensor.OutsideHumidity, Conversion.NONE);
+        add("winddir", Sensor.WindDirection, Conversion.NONE);
+        add("windspeedmph", Sensor.WindSpeed, Conversion.MPH);
+        add("windgustmph", Sensor.GustyWindSpeed, Conversion.MPH);
+        add("hourlyrainin", Sensor.RainHour, Conversion.INCH);
+        add("dailyrainin", Sensor.RainDay, Conversion.INCH);
+        add("weeklyrainin", Sensor.RainWeek, Conversion.INCH);
+        add("monthlyrainin", Sensor.RainMonth, Conversion.INCH);
+        add("yearlyrainin", Sensor.RainYear, Conversion.INCH);
+        add("totalrainin", Sensor.RainAll, Conversion.INCH);
+        add("solarradiation", Sensor.Lightness, Conversion.WM2);
+        add("uv", Sensor.UvIdxRaw, Conversion.NONE);
+        
+        // Wunderground, shares the outdoor fields above
+        add("ID", Target.KEY);
+        add("softwaretype", Target.FIRMWARE);
+        add("indoortempf", Sensor.RoomTemperature, Conversion.FAHRENHEIT);
+        add("indoorhumidity", Sensor.RoomHumidity, Conversion.NONE);
+        add("baromin", Sensor.BarometricPressureRelative, Conversion.INHG);
+        add("absbaromin", Sensor.BarometricPressureAbsolute, Conversion.INHG);
+        add("dewptf", Sensor.DewPoint, Conversion.FAHRENHEIT);
+        add("windchillf", Sensor.ApparentAirTemperature, Conversion.FAHRENHEIT);
+        add("rainin", Sensor.RainHour, Conversion.INCH);
+        add("UV", Sensor.UvIdxRaw, Conversion.NONE);
+    }
+    
+    private static final class Field {
+        
+        private final byte[] name;
+        private final Target target;
+        private final Sensor sensor;
+        private final Conversion conversion;
+        
+        private Field(String name, Target target, Sensor sensor, Conversion conversion) {
+            this.name = name.getBytes(StandardCharsets.US_ASCII);
+            this.target = target;
+            this.sensor = sensor;
+            this.conversion = conversion;
+        }
+    }
+    
+    /**
+     * The decoded upload, values are stored by {@link Sensor#ordinal()} like in a {@link SensorSnapshot}.
+     */
+    static final class Upload {
+        
+        private final double[] values = new double[Sensor.values().length];
+        private long validMask;
+        private long invalidMask;
+        private String key;
+        private String model;
+        private String firmware;
+        
+        /**
+         * The values, sensors which were not uploaded or invalid are 0.0.
+         */
+        double[] getValues() {
+            return values;
+        }
+        
+        long getValidMask() {
+            return validMask;
+        }
+        
+        /**
+         * The sensors which were uploaded, but with an unparsable or missing value.
+         */
+        long getInvalidMask() {
+            return invalidMask;
+        }
+        
+        /**
+         * The Ecowitt pass key or the Wunderground id, null if the upload had none.
+         */
+        String getKey() {
+            return key;
+        }
+        
+        String getModel() {
+            return model;
+        }
+        
+        String getFirmware() {
+            return firmware;
+        }
+    }
+    
+    private PushDecoder() {
+    }
+    
+    private static void add(String name, Target target) {
+        add(new Field(name, target, null, Conversion.NONE));
+    }
+    
+    private static void add(String name, Sensor sensor, Conversion conversion) {
+        add(new Field(name, Target.SENSOR, sensor, conversion));
+    }
+    
+    private static void add(Field field) {
+        int index = hash(field.name, 0, field.name.length) & (TABLE_SIZE - 1);
+        
+        while (TABLE[index] != null) {
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+        
+        TABLE[index] = field;
+    }
+    
+    /**
+     * Decodes the url encoded fields in the first length bytes of the form.
+     */
+    static Upload decode(byte[] form, int length) {
+        Upload upload = new Upload();
+        
+        for (int pos = 0; pos < length; ) {
+            int end = indexOf(form, pos, length, '&');
+            int separator = indexOf(form, pos, end, '=');
+            
+            Field field = lookup(form, pos, separator);
+            if ((field != null) && (separator < end)) {
+                apply(upload, field, form, separator + 1, end);
+            }
+            
+            pos = end + 1;
+        }
+        
+        return upload;
+    }
+    
+    private static void apply(Upload upload, Field field, byte[] form, int from, int to) {
+        switch (field.target) {
+            case SENSOR:
+                int ordinal = field.sensor.ordinal();
+                double value = parseNumber(form, from, to);
+                
+                if (Double.isNaN(value) || (value <= MISSING)) {
+                    upload.values[ordinal] = 0.0;
+                    upload.validMask &= ~(1L << ordinal);
+                    upload.invalidMask |= 1L << ordinal;
+                } else {
+                    upload.values[ordinal] = convert(field.conversion, value);
+                    upload.validMask |= 1L << ordinal;
+                    upload.invalidMask &= ~(1L << ordinal);
+                }
+                break;
+                
+            case KEY:
+                upload.key = decodeText(form, from, to);
+                break;
+                
+            case MODEL:
+                upload.model = decodeText(form, from, to);
+                break;
+                
+            case FIRMWARE:
+                upload.firmware = decodeText(form, from, to);
+                break;
+                
+            default:
+                throw new IllegalStateException("Unknown target " + field.target);
+        }
+    }
+    
+    private static double convert(Conversion conversion, double value) {
+        switch (conversion) {
+            case FAHRENHEIT:
+                return round((value - 32.0) / 1.8);
+                
+            case INHG:
+                return round(value * HPA_PER_INHG);
+                
+            case MPH:
+                return round(value * KMH_PER_MPH);
+                
+            case INCH:
+                return round(value * MM_PER_INCH);
+                
+            case WM2:
+                return round(value * LUX_PER_WM2);
+                
+            default:
+                return value;
+        }
+    }
+    
+    /**
+     * Rounds to tenths, the resolution of the polled stations.
+     */
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+    
+    private static Field lookup(byte[] form, int from, int to) {
+        int length = to - from;
+        int index = hash(form, from, to) & (TABLE_SIZE - 1);
+        
+        for (Field field = TABLE[index]; field != null; field = TABLE[index]) {
+            if (matches(field.name, form, from, length)) {
+                return field;
+            }
+            
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+        
+        return null;
+    }
+    
+    private static boolean matches(byte[] name, byte[] form, int from, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        
+        for (int i = 0; i < length; i++) {
+            if (name[i] != form[from + i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static int hash(byte[] text, int from, int to) {
+        int hash = 0x811c9dc5;
+        
+        for (int pos = from; pos < to; pos++) {
+            hash = (hash ^ text[pos]) * 0x01000193;
+        }
+        
+        return hash ^ (hash >>> 16);
+    }
+    
+    private static int indexOf(byte[] text, int from, int to, char c) {
+        for (int pos = from; pos < to; pos++) {
+            if (text[pos] == c) {
+                return pos;
+            }
+        }
+        
+        return to;
+    }
+    
+    /**
+     * Parses a plain decimal number like -12.5, returns NaN for anything else.
+     */
+    static double parseNumber(byte[] text, int from, int to) {
+        int pos = from;
+        boolean negative = (pos < to) && (text[pos] == '-');
+        if (negative) {
+            pos++;
+        }
+        
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        
+        for (; pos < to; pos++) {
+            int c = text[pos];
+            
+            if ((c >= '0') && (c <= '9')) {
+                if (digits == MAX_DIGITS) {
+                    return Double.NaN;
+                }
+                
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                scale += point ? 1 : 0;
+                
+            } else if ((c == '.') && !point) {
+                point = true;
+                
+            } else {
+                return Double.NaN;
+            }
+        }
+        
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        
+        // correctly rounded, the mantissa and the power of ten are both exact doubles
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+    
+    private static String decodeText(byte[] text, int from, int to) {
+        byte[] decoded = new byte[to - from];
+        int length = 0;
+        
+        for (int pos = from; pos < to; pos++) {
+            byte b = text[pos];
+            
+            if (b == '+') {
+                b = ' ';
+                
+            } else if ((b == '%') && (pos + 2 < to)) {
+                int high = Character.digit(text[pos + 1], 16);
+                int low = Character.digit(text[pos + 2], 16);
+                
+                if ((high >= 0) && (low >= 0)) {
+                    b = (byte) ((high << 4) | low);
+                    pos += 2;
+                }
+            }
+            
+            decoded[length++] = b;
+        }
+        
+        return new String(decoded, 0, length, StandardCharsets.UTF_8);
+    }
+    
+}
@@ -0,0 +1,190 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.station;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import de.poulter.weathergateway.GatewayMetrics;
+
+/**
+ * Takes the uploads of stations which push their data instead of being polled.
+ * A push station is identified by its Ecowitt pass key or Wunderground id, it is
+ * registered on its first upload and served like a polled station.
+ * 
+ * The key becomes the MAC of the station and with it a directory name of the
+ * history store, so only plain keys are taken. Which and how many push stations
+ * are registered is limited by push.stations and push.max.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class PushService implements InitializingBean {
+
+    private static final Logger log = LogManager.getLogger(PushService.class);
+    
+    // the registration is renewed at most this often, not with every upload
+    private static final long SEEN_INTERVAL = 60000;
+    
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    
+    public enum Result {
+        /** The values are published. */
+        ACCEPTED,
+        /** The upload is malformed or not from a push station which may upload. */
+        INVALID,
+        /** The gateway takes no more push stations or uploads right now, the station should retry. */
+        BUSY
+    }
+    
+    private Set<String> allowedKeys;
+    
+    @Autowired
+    private StationRegistry stationRegistry;
+    
+    @Autowired
+    private DataService dataService;
+    
+    @Autowired
+    private GatewayMetrics metrics;
+    
+    @Value("${push.stations}")
+    private String stations;
+    
+    @Value("${push.max}")
+    private Integer maxStations;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        allowedKeys = Arrays.stream(stations.split(","))
+            .map(String::trim)
+            .filter(key -> !key.isEmpty())
+            .collect(Collectors.toSet());
+        
+        if (!allowedKeys.isEmpty()) {
+            log.info("Taking uploads of push stations " + allowedKeys + " only.");
+        }
+    }
+    
+    /**
+     * Decodes the url encoded fields in the first length bytes of the form and publishes
+     * their values.
+     */
+    public Result ingest(byte[] form, int length, InetAddress address) {
+        long started = System.nanoTime();
+        
+        PushDecoder.Upload upload = PushDecoder.decode(form, length);
+        if (!isAccepted(upload.getKey(), address)) {
+            metrics.countPushRejected();
+            return Result.INVALID;
+        }
+        
+        Station station = register(upload, address);
+        if (station == null) {
+            log.warn("Upload from " + address + " would exceed " + maxStations + " push stations, ignoring it.");
+            metrics.countPushRejected();
+            return Result.BUSY;
+        }
+        
+        if (!station.isPush()) {
+            log.warn("Upload from " + address + " uses the id of polled station " + station + ", ignoring it.");
+            metrics.countPushRejected();
+            return Result.INVALID;
+        }
+        
+        if (!dataService.push(station, upload.getValues(), upload.getValidMask(), upload.getInvalidMask(), started)) {
+            log.warn("Too many uploads waiting to be published, dropping upload of station " + station + ".");
+            metrics.countPushRejected();
+            return Result.BUSY;
+        }
+        
+        metrics.countPushUpload();
+        
+        if (upload.getFirmware() != null) {
+            dataService.setFirmwareVersion(station.getMac(), upload.getFirmware());
+        }
+        
+        return Result.ACCEPTED;
+    }
+    
+    private boolean isAccepted(String key, InetAddress address) {
+        if ((key == null) || key.isEmpty()) {
+            log.warn("Upload from " + address + " has no pass key or id, ignoring it.");
+            return false;
+        }
+        
+        if (!isValidKey(key)) {
+            log.warn("Upload from " + address + " has an invalid pass key or id, ignoring it.");
+            return false;
+        }
+        
+        if (!allowedKeys.isEmpty() && !allowedKeys.contains(key)) {
+            log.debug("Upload from " + address + " is not from a configured push station, ignoring it.");
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the registered station of the key, which is only a push station if
+     * it was registered by an upload, or null if there are too many push stations.
+     * Uploads of different stations never wait for each other.
+     */
+    private Station register(PushDecoder.Upload upload, InetAddress address) {
+        String key = upload.getKey();
+        String name = (upload.getModel() != null) ? upload.getModel() : key;
+        long now = System.currentTimeMillis();
+        
+        Station station = stationRegistry.getStation(key);
+        if (station == null) {
+            return stationRegistry.registerPush(new Station(key, address, 0, name, now), maxStations);
+        }
+        
+        if (station.isPush() && (!address.equals(station.getAddress()) || (station.getLastSeen() + SEEN_INTERVAL < now))) {
+            Station renewed = new Station(key, address, 0, name, now);
+            
+            // another upload of the station might have renewed it already
+            if (stationRegistry.replace(station, renewed)) {
+                return renewed;
+            }
+        }
+        
+        return station;
+    }
+    
+    /**
+     * Checks that the pass key or id is safe to be used as MAC of a station.
+     */
+    static boolean isValidKey(String key) {
+        return KEY_PATTERN.matcher(key).matches();
+    }
+    
+}
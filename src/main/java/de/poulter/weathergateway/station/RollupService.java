@@ -0,0 +1,96 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Service;
+
+import de.poulter.weathergateway.station.SensorRollup.Resolution;
+
+/**
+ * Feeds every snapshot into the minute, hour and day rollups of its station.
+ * The rollups of a station are dropped when it expires from the registry.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class RollupService implements SnapshotListener, StationListener {
+
+    private static final Sensor[] SENSORS = Sensor.values();
+    
+    private final Map<String, StationRollups> rollups = new ConcurrentHashMap<>();
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        rollups.computeIfAbsent(station.getMac(), mac -> new StationRollups()).add(snapshot);
+    }
+    
+    @Override
+    public void onExpired(Station station) {
+        rollups.remove(station.getMac());
+    }
+    
+    public SensorRollup getRollup(String mac, Resolution resolution) {
+        StationRollups stationRollups = rollups.get(mac);
+        return (stationRollups != null) ? stationRollups.rollups[resolution.ordinal()] : null;
+    }
+    
+    private static class StationRollups {
+        
+        private final SensorRollup[] rollups = new SensorRollup[Resolution.values().length];
+        private final double[] lastCounters = new double[SENSORS.length];
+        private final double[] deltas = new double[SENSORS.length];
+        private final boolean[] hasCounter = new boolean[SENSORS.length];
+        
+        private StationRollups() {
+            for (Resolution resolution : Resolution.values()) {
+                rollups[resolution.ordinal()] = new SensorRollup(resolution);
+            }
+        }
+        
+        private void add(SensorSnapshot snapshot) {
+            for (Sensor sensor : SENSORS) {
+                int s = sensor.ordinal();
+                deltas[s] = 0.0;
+                
+                if ((sensor.getAggregation() != Aggregation.DELTA_SUM) || !snapshot.isValid(sensor)) {
+                    continue;
+                }
+                
+                double value = snapshot.getValue(sensor);
+                if (hasCounter[s]) {
+                    // a counter which went down was reset, so everything since the reset is new
+                    deltas[s] = (value >= lastCounters[s]) ? (value - lastCounters[s]) : value;
+                }
+                
+                lastCounters[s] = value;
+                hasCounter[s] = true;
+            }
+            
+            for (SensorRollup rollup : rollups) {
+                rollup.add(snapshot, deltas);
+            }
+        }
+    }
+    
+}
@@ -20,178 +20,137 @@
 
 package de.poulter.weathergateway.station;
 
-import java.util.EnumSet;
-import java.util.Map;
-import java.util.function.BiFunction;
-import java.util.stream.Collectors;
-
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import java.nio.ByteBuffer;
 
 /**
+ * The sensors known to the gateway. Their ids, sizes and units and how the
+ * station encodes their values are described by the built-in {@link SensorCatalog}.
+ * 
  * @author Christian Poulter <devel@poulter.de>
  */
 public enum Sensor {
     
-    RoomTemperature(1, 2, Unit.TEMPERATURE, SensorFunctions.TEMPERATURE),
-    OutsideTemperature(2, 2, Unit.TEMPERATURE, SensorFunctions.TEMPERATURE),
-    DewPoint(3, 2, Unit.TEMPERATURE, SensorFunctions.TEMPERATURE),
-    ApparentAirTemperature(4, 2, Unit.TEMPERATURE, SensorFunctions.TEMPERATURE),
-    TemperatureHumidityIndex(5, 2, Unit.TEMPERATURE, SensorFunctions.TEMPERATURE),
-    RoomHumidity(6, 1, Unit.HUMIDITY, SensorFunctions.HUMIDITY),
-    OutsideHumidity(7, 1, Unit.HUMIDITY, SensorFunctions.HUMIDITY),
-    BarometricPressureAbsolute(8, 2, Unit.PRESSURE, SensorFunctions.PRESSURE),
-    BarometricPressureRelative(9, 2, Unit.PRESSURE, SensorFunctions.PRESSURE),
-    WindDirection(10, 2, Unit.DEGREE, SensorFunctions.WINDDIRECTION),
-    WindSpeed(11, 2, Unit.SPEED, SensorFunctions.WINDSPEED),
-    GustyWindSpeed(12, 2, Unit.SPEED, SensorFunctions.WINDSPEED),
-    RainHour(14, 4, Unit.MM, SensorFunctions.RAIN),
-    RainDay(16, 4, Unit.MM, SensorFunctions.RAIN),
-    RainWeek(17, 4, Unit.MM, SensorFunctions.RAIN),
-    RainMonth(18, 4, Unit.MM, SensorFunctions.RAIN),
-    RainYear(19, 4, Unit.MM, SensorFunctions.RAIN),
-    RainAll(20, 4, Unit.MM, SensorFunctions.RAIN),
-    Lightness(21, 4, Unit.LUX, SensorFunctions.LIGHTNESS),
-    UvRaw(22, 2, Unit.UWM2, SensorFunctions.UVRAW),
-    UvIdxRaw(23, 1, Unit.NONE, SensorFunctions.UV),
+    RoomTemperature,
+    OutsideTemperature,
+    DewPoint,
+    ApparentAirTemperature,
+    TemperatureHumidityIndex,
+    RoomHumidity,
+    OutsideHumidity,
+    BarometricPressureAbsolute,
+    BarometricPressureRelative,
+    WindDirection,
+    WindSpeed,
+    GustyWindSpeed,
+    RainHour,
+    RainDay,
+    RainWeek,
+    RainMonth,
+    RainYear,
+    RainAll,
+    Lightness,
+    UvRaw,
+    UvIdxRaw,
     ;
     
-	private static final Logger log = LogManager.getLogger(Sensor.class);
-    private static final Map<Integer, Sensor> SENSORBYID = EnumSet.allOf(Sensor.class).stream().collect(Collectors.toMap(s -> s.id, s -> s));
+    /**
+     * Returns the sensor of the id in the built-in catalog, or null if there is none.
+     */
+    public static Sensor getSensor(int id) {
+        SensorDecoder decoder = ((id >= 0) && (id <= 255)) ? Defaults.CATALOG.getDecoder(id) : null;
+        return (decoder != null) ? decoder.getSensor() : null;
+    }
     
-    private int id;
-    private Unit unit;
-    private int size;
-    private BiFunction<byte[], Integer, Double> function;
-
-    private Sensor(int id, int size, Unit einheit, BiFunction<byte[], Integer, Double> function) {
-        this.id = id;
-        this.unit = einheit;
-        this.size = size;
-        this.function = function;
+    public Double convertValue(byte[] data, int pos) {
+        return convertValue(ByteBuffer.wrap(data), pos);
     }
-
-    public static Sensor getSensor(int id) {
-        return SENSORBYID.get(id);
+    
+    public Double convertValue(ByteBuffer data, int pos) {
+        double value = decodeValue(data, pos);
+        return Double.isNaN(value) ? 0.0 : value;
+    }
+    
+    /**
+     * Decodes the value at the given position with the built-in {@link SensorCatalog},
+     * unlike {@link #convertValue(ByteBuffer, int)} an invalid value is returned as NaN.
+     */
+    public double decodeValue(ByteBuffer data, int pos) {
+        return Defaults.DECODERS[ordinal()].decode(data, pos);
     }
     
-    public Double convertValue(byte[] data2, int pos2) {
-        return function.apply(data2, pos2);
+    /**
+     * Returns if a value returned by {@link #decodeValue(ByteBuffer, int)} is valid.
+     */
+    public static boolean isValid(double value) {
+        return !Double.isNaN(value);
     }
     
     public int getId() {
-        return id;
+        return Defaults.DECODERS[ordinal()].getId();
     }
 
     public Unit getUnit() {
-        return unit;
+        return Defaults.DECODERS[ordinal()].getUnit();
     }
 
     public int getSize() {
-        return size;
+        return Defaults.DECODERS[ordinal()].getSize();
+    }
+    
+    public Aggregation getAggregation() {
+        switch (this) {
+            // the rain of the last hour, not a counter
+            case RainHour:
+                return Aggregation.MAX;
+                
+            case RainDay:
+            case RainWeek:
+            case RainMonth:
+            case RainYear:
+            case RainAll:
+                return Aggregation.DELTA_SUM;
+                
+            case WindDirection:
+                return Aggregation.VECTOR_MEAN;
+                
+            default:
+                return Aggregation.MEAN;
+        }
     }
  
-    private static class SensorFunctions {
-
-        private static final BiFunction<byte[], Integer, Double> TEMPERATURE = (data, pos) -> {
-            int value = StationBinaryTools.fromTwoBytesSigned(data, pos);
-
-            if (value == 32767) {
-                log.warn("Invalid temperature: " + value);
-                return 0.0;
-            }
-
-            return (double) value / 10.0;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> HUMIDITY = (data, pos) -> {
-            int value = StationBinaryTools.fromByteSigned(data, pos);
-
-            if (value < 0 || value > 100) {
-                log.warn("Invalid humidity: " + value);
-                return 0.0;
+    /**
+     * The built-in catalog and its decoder of each sensor, loaded on first use
+     * as the catalog itself looks up its sensors by name.
+     */
+    private static class Defaults {
+        
+        private static final SensorCatalog CATALOG = SensorCatalog.defaults();
+        private static final SensorDecoder[] DECODERS = load();
+        
+        private static SensorDecoder[] load() {
+            SensorDecoder[] decoders = new SensorDecoder[values().length];
+            
+            for (int id = 0; id <= 255; id++) {
+                SensorDecoder decoder = CATALOG.getDecoder(id);
+                if ((decoder == null) || (decoder.getSensor() == null)) {
+                    continue;
+                }
+                
+                if (decoders[decoder.getSensor().ordinal()] != null) {
+                    throw new IllegalStateException("The built-in sensor catalog has more than one id for " + decoder.getSensor() + ".");
+                }
+                
+                decoders[decoder.getSensor().ordinal()] = decoder;
             }
-
-            return (double) value;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> PRESSURE = (data, pos) -> {
-            int value = StationBinaryTools.fromTwoBytesSigned(data, pos);
-
-            if (value < 0 || value == 32767) {
-                log.warn("Invalid pressure: " + value);
-                return 0.0;
+            
+            for (Sensor sensor : values()) {
+                if (decoders[sensor.ordinal()] == null) {
+                    throw new IllegalStateException("The built-in sensor catalog has no decoder for " + sensor + ".");
+                }
             }
-
-            return (double) value / 10.0;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> WINDSPEED = (data, pos) -> {
-            int value = StationBinaryTools.fromTwoBytesSigned(data, pos);
-
-            if (value < 0 || value == 32767) {
-                log.warn("Invalid windspeed: " + value);
-                return 0.0;
-            }
-
-            // this is m/s, but we prefer km/h
-            return Math.round((double) value * 3.6) / 10.0;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> WINDDIRECTION = (data, pos) -> {
-            int value = StationBinaryTools.fromTwoBytesSigned(data, pos);
-
-            if (value < 0 || value > 360) {
-                log.warn("Invalid winddirection: " + value);
-                return 0.0;
-            }
-
-            return (double) value;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> RAIN = (data, pos) -> {
-            int value = StationBinaryTools.fromFourBytesSigned(data, pos);
-
-            if (value < 0 || value > 16777214) {
-                log.warn("Invalid rain: " + value);
-                return 0.0;
-            }
-
-            return (double) value / 10.0;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> LIGHTNESS = (data, pos) -> {
-            int value = StationBinaryTools.fromFourBytesSigned(data, pos);
-
-            if (value < 0 || value > 16777214) {
-                log.warn("Invalid lightness: " + value);
-                return 0.0;
-            }
-
-            return (double) value / 10.0;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> UVRAW = (data, pos) -> {
-            int value = StationBinaryTools.fromTwoBytesSigned(data, pos);
-
-            if (value < 0 || value == 32767) {
-                log.warn("Invalid uv raw: " + value);
-                return 0.0;
-            }
-
-            return (double) value;
-        };
-
-        private static final BiFunction<byte[], Integer, Double> UV = (data, pos) -> {
-            int value = StationBinaryTools.fromByteSigned(data, pos);
-
-            if (value < 0) {
-                log.warn("Invalid uv: " + value);
-                return 0.0;
-            }
-
-            return (double) value;
-        };
-
+            
+            return decoders;
+        }
+        
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The sensor ids a station may send and how to decode them, loaded at startup
+ * from sensor.catalog or the built-in WS980 catalog if none is configured. Each
+ * line maps an id to its description, e.g.
+ * 
+ * <pre>
+ * 1 = name=RoomTemperature size=2 divisor=10 invalid=32767 unit=TEMPERATURE
+ * </pre>
+ * 
+ * The values of ids whose name is not a {@link Sensor} are skipped, so other
+ * models and firmware variants can be decoded without shifting the records
+ * after them.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Component
+public class SensorCatalog implements InitializingBean {
+
+    private static final Logger log = LogManager.getLogger(SensorCatalog.class);
+    
+    private static final String DEFAULT_CATALOG = "/sensors.properties";
+    
+    private SensorDecoder[] decoders = new SensorDecoder[256];
+    
+    @Value("${sensor.catalog}")
+    private String file;
+    
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        boolean configured = (file != null) && !file.isEmpty();
+        
+        Properties definitions = configured ? readFile() : readDefaults();
+        decoders = compile(definitions);
+        
+        log.info("Loaded " + definitions.size() + " sensors from " + (configured ? file : "the built-in catalog") + ".");
+    }
+    
+    /**
+     * Returns the built-in catalog, e.g. for tests and benchmarks.
+     */
+    public static SensorCatalog defaults() {
+        try {
+            return of(readDefaults());
+            
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to load the built-in sensor catalog.", ex);
+        }
+    }
+    
+    static SensorCatalog of(Properties definitions) {
+        SensorCatalog catalog = new SensorCatalog();
+        catalog.decoders = compile(definitions);
+        return catalog;
+    }
+    
+    /**
+     * Returns the decoder of the id, or null if the id is not in the catalog.
+     */
+    SensorDecoder getDecoder(int id) {
+        return decoders[id & 0xff];
+    }
+    
+    private Properties readFile() throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            Properties definitions = new Properties();
+            definitions.load(in);
+            return definitions;
+        }
+    }
+    
+    private static Properties readDefaults() throws IOException {
+        try (InputStream in = SensorCatalog.class.getResourceAsStream(DEFAULT_CATALOG)) {
+            if (in == null) {
+                throw new IOException("Resource " + DEFAULT_CATALOG + " not found.");
+            }
+            
+            Properties definitions = new Properties();
+            definitions.load(in);
+            return definitions;
+        }
+    }
+    
+    /**
+     * Compiles the definitions to a table indexed by id.
+     */
+    static SensorDecoder[] compile(Properties definitions) {
+        SensorDecoder[] decoders = new SensorDecoder[256];
+        
+        for (String key : definitions.stringPropertyNames()) {
+            int id;
+            try {
+                id = Integer.decode(key.trim());
+                
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid sensor id " + key + ".");
+            }
+            
+            if ((id < 0) || (id > 255)) {
+                throw new IllegalArgumentException("Sensor id " + key + " is out of range.");
+            }
+            
+            decoders[id] = parse(id, definitions.getProperty(key));
+        }
+        
+        return decoders;
+    }
+    
+    static SensorDecoder parse(int id, String definition) {
+        String name = null;
+        Unit unit = Unit.NONE;
+        int size = 0;
+        boolean signed = true;
+        double factor = 1.0;
+        double divisor = 1.0;
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+        long[] invalid = new long[0];
+        
+        for (String attribute : definition.trim().split("\\s+")) {
+            int separator = attribute.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid attribute " + attribute + " of sensor " + id + ".");
+            }
+            
+            String key = attribute.substring(0, separator);
+            String value = attribute.substring(separator + 1);
+            
+            try {
+                switch (key) {
+                    case "name":
+                        name = value;
+                        break;
+                        
+                    case "unit":
+                        unit = Unit.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                        
+                    case "size":
+                        size = Integer.parseInt(value);
+                        break;
+                        
+                    case "signed":
+                        signed = Boolean.parseBoolean(value);
+                        break;
+                        
+                    case "factor":
+                        factor = Double.parseDouble(value);
+                        break;
+                        
+                    case "divisor":
+                        divisor = Double.parseDouble(value);
+                        break;
+                        
+                    case "min":
+                        min = Long.decode(value);
+                        break;
+                        
+                    case "max":
+                        max = Long.decode(value);
+                        break;
+                        
+                    case "invalid":
+                        String[] values = value.split(",");
+                        invalid = new long[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            invalid[i] = Long.decode(values[i]);
+                        }
+                        break;
+                        
+                    default:
+                        throw new IllegalArgumentException("Unknown attribute " + key + ".");
+                }
+                
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid attribute " + attribute + " of sensor " + id + ".", ex);
+            }
+        }
+        
+        if (name == null) {
+            throw new IllegalArgumentException("Sensor " + id + " has no name.");
+        }
+        
+        Sensor sensor = null;
+        try {
+            sensor = Sensor.valueOf(name);
+            
+        } catch (IllegalArgumentException ex) {
+            log.info("Sensor " + name + " (" + id + ") is not known, its values are skipped.");
+        }
+        
+        return new SensorDecoder(id, name, sensor, unit, size, signed, factor, divisor, min, max, invalid);
+    }
+    
+}
@@ -0,0 +1,147 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decodes the records of one sensor id as described in the {@link SensorCatalog}:
+ * a signed or unsigned integer of 1, 2 or 4 bytes, checked against the valid
+ * range and the sentinel values of the station, and scaled to the unit.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+final class SensorDecoder {
+
+    private static final Logger log = LogManager.getLogger(SensorDecoder.class);
+    
+    private final int id;
+    private final String name;
+    private final Sensor sensor;
+    private final Unit unit;
+    private final int size;
+    private final boolean signed;
+    private final double factor;
+    private final double divisor;
+    private final long min;
+    private final long max;
+    private final long[] invalid;
+    
+    SensorDecoder(int id, String name, Sensor sensor, Unit unit, int size, boolean signed, double factor, double divisor, long min, long max, long[] invalid) {
+        if ((size != 1) && (size != 2) && (size != 4)) {
+            throw new IllegalArgumentException("Sensor " + name + " has unsupported size " + size + ".");
+        }
+        
+        if (divisor == 0.0) {
+            throw new IllegalArgumentException("Sensor " + name + " has divisor 0.");
+        }
+        
+        this.id = id;
+        this.name = name;
+        this.sensor = sensor;
+        this.unit = unit;
+        this.size = size;
+        this.signed = signed;
+        this.factor = factor;
+        this.divisor = divisor;
+        this.min = min;
+        this.max = max;
+        this.invalid = invalid.clone();
+    }
+    
+    /**
+     * Decodes the value at the given position, an invalid value is returned as NaN.
+     */
+    double decode(ByteBuffer data, int pos) {
+        long raw = read(data, pos);
+        
+        if ((raw < min) || (raw > max) || isSentinel(raw)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Invalid " + name + ": " + raw);
+            }
+            
+            return Double.NaN;
+        }
+        
+        // scaled like the station does, e.g. 218 / 10.0 is 21.8 and not 21.800000000000001
+        double value = (factor == 1.0) ? raw : Math.round(raw * factor);
+        return value / divisor;
+    }
+    
+    private long read(ByteBuffer data, int pos) {
+        switch (size) {
+            case 1:
+                return signed ? StationBinaryTools.fromByteSigned(data, pos) : StationBinaryTools.fromByteUnsigned(data, pos);
+                
+            case 2:
+                return signed ? StationBinaryTools.fromTwoBytesSigned(data, pos) : StationBinaryTools.fromTwoBytesUnsigned(data, pos);
+                
+            default:
+                int value = StationBinaryTools.fromFourBytesSigned(data, pos);
+                return signed ? value : value & 0xffffffffL;
+        }
+    }
+    
+    private boolean isSentinel(long raw) {
+        for (long value : invalid) {
+            if (raw == value) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    int getId() {
+        return id;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the sensor the values are published as, or null if the values
+     * are only skipped, e.g. because the sensor is not known to the gateway yet.
+     */
+    Sensor getSensor() {
+        return sensor;
+    }
+    
+    Unit getUnit() {
+        return unit;
+    }
+    
+    int getSize() {
+        return size;
+    }
+    
+    @Override
+    public String toString() {
+        return "SensorDecoder [id=" + id + ", name=" + name + ", size=" + size + ", signed=" + signed + ", factor=" + factor
+            + ", divisor=" + divisor + ", min=" + min + ", max=" + max + ", invalid=" + Arrays.toString(invalid) + ", unit=" + unit + "]";
+    }
+    
+}
@@ -0,0 +1,136 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Fixed size ring buffer with the last polls of one station. There is one
+ * timestamp column and one value column per sensor, so appending never
+ * allocates. Sensors which were not valid in a poll are stored as NaN.
+ * 
+ * There must only be one writer; readers use the version as sequence lock
+ * and retry if they raced with the writer, like {@link SensorRollup}.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SensorHistory {
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[][] values;
+    
+    private long count;
+    private volatile long version;
+    
+    public SensorHistory(int capacity) {
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new double[Sensor.values().length][capacity];
+    }
+    
+    public void append(SensorSnapshot snapshot) {
+        int slot = (int) (count % capacity);
+        
+        version++;
+        VarHandle.releaseFence();
+        
+        timestamps[slot] = snapshot.getTimestamp();
+        for (Sensor sensor : Sensor.values()) {
+            values[sensor.ordinal()][slot] = snapshot.isValid(sensor) ? snapshot.getValue(sensor) : Double.NaN;
+        }
+        
+        count++;
+        version++;
+    }
+    
+    /**
+     * Returns all values of the sensor between from and to (inclusive). If step
+     * is greater than 0, only the last value of every step is returned.
+     */
+    public SensorSeries query(Sensor sensor, long from, long to, long step) {
+        double[] column = values[sensor.ordinal()];
+        long[] rawTimestamps = new long[capacity];
+        double[] rawValues = new double[capacity];
+        int length;
+        
+        while (true) {
+            long before = version;
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            
+            long end = count;
+            long start = Math.max(0, end - capacity);
+            length = (int) (end - start);
+            
+            for (int i = 0; i < length; i++) {
+                int slot = (int) ((start + i) % capacity);
+                rawTimestamps[i] = timestamps[slot];
+                rawValues[i] = column[slot];
+            }
+            
+            VarHandle.acquireFence();
+            if (version == before) {
+                break;
+            }
+        }
+        
+        SensorSeries series = new SensorSeries(length, from, step);
+        for (int i = 0; i < length; i++) {
+            long timestamp = rawTimestamps[i];
+            double value = rawValues[i];
+            
+            if ((timestamp >= from) && (timestamp <= to) && !Double.isNaN(value)) {
+                series.add(timestamp, value);
+            }
+        }
+        
+        return series;
+    }
+    
+    /**
+     * Returns the timestamp of the oldest entry or Long.MAX_VALUE if empty.
+     */
+    public long getOldestTimestamp() {
+        while (true) {
+            long before = version;
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            
+            long end = count;
+            long timestamp = (end == 0) ? Long.MAX_VALUE : timestamps[(int) (Math.max(0, end - capacity) % capacity)];
+            
+            VarHandle.acquireFence();
+            if (version == before) {
+                return timestamp;
+            }
+        }
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+}
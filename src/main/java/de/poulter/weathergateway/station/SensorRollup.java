@@ -0,0 +1,286 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Incremental min/max/aggregate buckets of all sensors of one station at a
+ * fixed resolution. Only buckets with data are kept in a ring, a bucket is
+ * finalized as soon as a value for a later bucket arrives.
+ * 
+ * The rollups are only kept in memory and start empty after a restart, so the
+ * rings cover a day of minutes and a month of hours and days at most; longer
+ * ranges are answered from the history.
+ * 
+ * There must only be one writer; readers use the version as sequence lock
+ * and retry if they raced with the writer.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SensorRollup {
+
+    public enum Resolution {
+        MINUTE(60000L, 1440),
+        HOUR(3600000L, 744),
+        DAY(86400000L, 31),
+        ;
+        
+        private final long size;
+        private final int capacity;
+        
+        private Resolution(long size, int capacity) {
+            this.size = size;
+            this.capacity = capacity;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public int getCapacity() {
+            return capacity;
+        }
+    }
+    
+    private static final Sensor[] SENSORS = Sensor.values();
+    
+    private final Resolution resolution;
+    private final int slots;
+    
+    private final long[] starts;
+    private final int[][] counts;
+    private final double[][] mins;
+    private final double[][] maxs;
+    private final double[][] sums;
+    private final double[][] values;
+    private final double[][] cosSums;
+    
+    private long buckets;
+    private volatile long version;
+    
+    public SensorRollup(Resolution resolution) {
+        this.resolution = resolution;
+        this.slots = resolution.getCapacity();
+        
+        this.starts = new long[slots];
+        this.counts = new int[SENSORS.length][slots];
+        this.mins = new double[SENSORS.length][slots];
+        this.maxs = new double[SENSORS.length][slots];
+        this.sums = new double[SENSORS.length][slots];
+        this.values = new double[SENSORS.length][slots];
+        this.cosSums = new double[SENSORS.length][slots];
+    }
+    
+    /**
+     * Adds all valid values of the snapshot. For counters the delta to the
+     * previous value is taken from deltas, indexed by {@link Sensor#ordinal()}.
+     */
+    public void add(SensorSnapshot snapshot, double[] deltas) {
+        long start = Math.floorDiv(snapshot.getTimestamp(), resolution.getSize()) * resolution.getSize();
+        int slot = (int) ((buckets - 1) % slots);
+        
+        if ((buckets > 0) && (start < starts[slot])) {
+            // older than the current bucket, which might already be finalized
+            return;
+        }
+        
+        version++;
+        VarHandle.releaseFence();
+        
+        if ((buckets == 0) || (start > starts[slot])) {
+            if (buckets > 0) {
+                finalizeBucket(slot);
+            }
+            
+            slot = (int) (buckets % slots);
+            buckets++;
+            
+            starts[slot] = start;
+            for (int s = 0; s < SENSORS.length; s++) {
+                counts[s][slot] = 0;
+                sums[s][slot] = 0.0;
+                cosSums[s][slot] = 0.0;
+                values[s][slot] = Double.NaN;
+            }
+        }
+        
+        for (Sensor sensor : SENSORS) {
+            if (!snapshot.isValid(sensor)) {
+                continue;
+            }
+            
+            int s = sensor.ordinal();
+            double value = snapshot.getValue(sensor);
+            
+            if (counts[s][slot] == 0) {
+                mins[s][slot] = value;
+                maxs[s][slot] = value;
+            } else {
+                mins[s][slot] = Math.min(mins[s][slot], value);
+                maxs[s][slot] = Math.max(maxs[s][slot], value);
+            }
+            counts[s][slot]++;
+            
+            switch (sensor.getAggregation()) {
+                case DELTA_SUM:
+                    sums[s][slot] += deltas[s];
+                    break;
+                    
+                case VECTOR_MEAN:
+                    sums[s][slot] += Math.sin(Math.toRadians(value));
+                    cosSums[s][slot] += Math.cos(Math.toRadians(value));
+                    break;
+                    
+                case MAX:
+                    break;
+                    
+                default:
+                    sums[s][slot] += value;
+            }
+        }
+        
+        version++;
+    }
+    
+    private void finalizeBucket(int slot) {
+        for (Sensor sensor : SENSORS) {
+            values[sensor.ordinal()][slot] = aggregate(sensor, slot);
+        }
+    }
+    
+    private double aggregate(Sensor sensor, int slot) {
+        int s = sensor.ordinal();
+        int count = counts[s][slot];
+        
+        if (count == 0) {
+            return Double.NaN;
+        }
+        
+        switch (sensor.getAggregation()) {
+            case DELTA_SUM:
+                return sums[s][slot];
+                
+            case VECTOR_MEAN:
+                double degree = Math.toDegrees(Math.atan2(sums[s][slot], cosSums[s][slot]));
+                return (degree < 0) ? degree + 360.0 : degree;
+                
+            case MAX:
+                return maxs[s][slot];
+                
+            default:
+                return sums[s][slot] / count;
+        }
+    }
+    
+    /**
+     * Returns all buckets of the sensor which start between from and to (inclusive).
+     */
+    public RollupSeries query(Sensor sensor, long from, long to) {
+        int s = sensor.ordinal();
+        
+        while (true) {
+            long before = version;
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            
+            long end = buckets;
+            long first = Math.max(0, end - slots);
+            RollupSeries series = new RollupSeries((int) (end - first));
+            
+            for (long bucket = first; bucket < end; bucket++) {
+                int slot = (int) (bucket % slots);
+                long start = starts[slot];
+                
+                if ((start < from) || (start > to) || (counts[s][slot] == 0)) {
+                    continue;
+                }
+                
+                double value = (bucket == end - 1) ? aggregate(sensor, slot) : values[s][slot];
+                series.add(start, counts[s][slot], mins[s][slot], maxs[s][slot], value);
+            }
+            
+            VarHandle.acquireFence();
+            if (version == before) {
+                return series;
+            }
+        }
+    }
+    
+    public Resolution getResolution() {
+        return resolution;
+    }
+    
+    public static class RollupSeries {
+        
+        private long[] starts;
+        private int[] counts;
+        private double[] mins;
+        private double[] maxs;
+        private double[] values;
+        private int size;
+        
+        private RollupSeries(int capacity) {
+            starts = new long[capacity];
+            counts = new int[capacity];
+            mins = new double[capacity];
+            maxs = new double[capacity];
+            values = new double[capacity];
+        }
+        
+        private void add(long start, int count, double min, double max, double value) {
+            starts[size] = start;
+            counts[size] = count;
+            mins[size] = min;
+            maxs[size] = max;
+            values[size] = value;
+            size++;
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        public long[] getStarts() {
+            return Arrays.copyOf(starts, size);
+        }
+        
+        public int[] getCounts() {
+            return Arrays.copyOf(counts, size);
+        }
+        
+        public double[] getMins() {
+            return Arrays.copyOf(mins, size);
+        }
+        
+        public double[] getMaxs() {
+            return Arrays.copyOf(maxs, size);
+        }
+        
+        public double[] getValues() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+    
+}
@@ -0,0 +1,90 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.util.Arrays;
+
+/**
+ * Time series of one sensor as result of a history query. If step is greater
+ * than 0, only the last value of every step (counted from the start) is kept.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SensorSeries {
+
+    private final long start;
+    private final long step;
+    
+    private long[] timestamps;
+    private double[] values;
+    private int size;
+    private long lastBucket = Long.MIN_VALUE;
+    
+    public SensorSeries(int initialCapacity, long start, long step) {
+        this.start = start;
+        this.step = step;
+        this.timestamps = new long[Math.max(initialCapacity, 16)];
+        this.values = new double[timestamps.length];
+    }
+    
+    public void add(long timestamp, double value) {
+        if (step > 0) {
+            long bucket = (timestamp - start) / step;
+            if (bucket == lastBucket) {
+                timestamps[size - 1] = timestamp;
+                values[size - 1] = value;
+                return;
+            }
+            
+            lastBucket = bucket;
+        }
+        
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+    
+    public double getValue(int index) {
+        return values[index];
+    }
+    
+    public long[] getTimestamps() {
+        return Arrays.copyOf(timestamps, size);
+    }
+    
+    public double[] getValues() {
+        return Arrays.copyOf(values, size);
+    }
+    
+}
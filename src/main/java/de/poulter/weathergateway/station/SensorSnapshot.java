@@ -0,0 +1,84 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+/**
+ * Immutable result of one poll of a station. Values are stored by
+ * {@link Sensor#ordinal()}, a set bit in the valid mask means the sensor was
+ * delivered by that poll. A stale snapshot was restored after a restart and
+ * not polled by this instance.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public final class SensorSnapshot {
+
+    public static final SensorSnapshot EMPTY = new SensorSnapshot(new double[Sensor.values().length], 0L, 0L, 0L);
+    
+    private final double[] values;
+    private final long validMask;
+    private final long timestamp;
+    private final long sequence;
+    private final boolean stale;
+    
+    /**
+     * The array is taken over and must not be changed afterwards.
+     */
+    public SensorSnapshot(double[] values, long validMask, long timestamp, long sequence) {
+        this(values, validMask, timestamp, sequence, false);
+    }
+    
+    SensorSnapshot(double[] values, long validMask, long timestamp, long sequence, boolean stale) {
+        this.values = values;
+        this.validMask = validMask;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.stale = stale;
+    }
+    
+    public double getValue(Sensor sensor) {
+        return values[sensor.ordinal()];
+    }
+    
+    public boolean isValid(Sensor sensor) {
+        return (validMask & (1L << sensor.ordinal())) != 0;
+    }
+    
+    public long getValidMask() {
+        return validMask;
+    }
+    
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public boolean isStale() {
+        return stale;
+    }
+    
+    public double[] copyValues() {
+        return values.clone();
+    }
+    
+}
@@ -0,0 +1,234 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the known stations with their last snapshot in a small local file,
+ * so after a restart the stations can be polled at once and the last values
+ * can be served (as stale) before the first poll. The file is replaced
+ * atomically, changes are written at most every state.delay ms.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class StateStore implements SnapshotListener, DisposableBean {
+
+    private static final Logger log = LogManager.getLogger(StateStore.class);
+    
+    private static final int MAGIC = 0x57475354;
+    private static final int VERSION = 1;
+    
+    private final Map<String, StationState> states = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    
+    @Value("${state.file}")
+    private String file;
+    
+    @Value("${broadcast.expire}")
+    private Long expire;
+    
+    public boolean isEnabled() {
+        return (file != null) && !file.isEmpty();
+    }
+    
+    /**
+     * Loads the persisted stations and snapshots, the snapshots are marked as stale.
+     */
+    public Collection<StationState> load() {
+        if (!isEnabled()) {
+            return new ArrayList<>();
+        }
+        
+        try {
+            List<StationState> loaded = readFile(Paths.get(file));
+            loaded.forEach(state -> states.putIfAbsent(state.getStation().getMac(), state));
+            
+            log.info("Restored " + loaded.size() + " stations from " + file + ".");
+            return loaded;
+            
+        } catch (NoSuchFileException ex) {
+            log.info("No saved state found in " + file + ".");
+            
+        } catch (IOException ex) {
+            log.warn("Unable to restore state from " + file + ".", ex);
+        }
+        
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public void onSnapshot(Station station, SensorSnapshot snapshot) {
+        states.put(station.getMac(), new StationState(station, snapshot));
+        dirty.set(true);
+    }
+    
+    @Scheduled(fixedDelayString = "${state.delay}")
+    public void save() {
+        if (!isEnabled() || !dirty.getAndSet(false)) {
+            return;
+        }
+        
+        long expired = System.currentTimeMillis() - expire;
+        states.values().removeIf(state -> state.getSnapshot().getTimestamp() < expired);
+        
+        try {
+            writeFile(Paths.get(file), states.values());
+            
+        } catch (IOException ex) {
+            log.warn("Unable to save state to " + file + ".", ex);
+            dirty.set(true);
+        }
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        save();
+    }
+    
+    static void writeFile(Path path, Collection<StationState> states) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(states.size());
+                
+                for (StationState state : states) {
+                    Station station = state.getStation();
+                    out.writeUTF(station.getMac());
+                    out.writeUTF(station.getAddress().getHostAddress());
+                    out.writeInt(station.getPort());
+                    out.writeUTF(station.getName());
+                    
+                    SensorSnapshot snapshot = state.getSnapshot();
+                    out.writeLong(snapshot.getTimestamp());
+                    out.writeLong(snapshot.getSequence());
+                    out.writeInt(Long.bitCount(snapshot.getValidMask()));
+                    
+                    // by name, so the file survives changes of the sensor list
+                    for (Sensor sensor : Sensor.values()) {
+                        if (snapshot.isValid(sensor)) {
+                            out.writeUTF(sensor.name());
+                            out.writeDouble(snapshot.getValue(sensor));
+                        }
+                    }
+                }
+            }
+            
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    static List<StationState> readFile(Path path) throws IOException {
+        List<StationState> states = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                throw new IOException("Unknown file format.");
+            }
+            
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String mac = in.readUTF();
+                InetAddress address = InetAddress.getByName(in.readUTF());
+                int port = in.readInt();
+                String name = in.readUTF();
+                Station station = new Station(mac, address, port, name, now);
+                
+                long timestamp = in.readLong();
+                long sequence = in.readLong();
+                double[] values = new double[Sensor.values().length];
+                long validMask = 0L;
+                
+                int sensors = in.readInt();
+                for (int j = 0; j < sensors; j++) {
+                    String sensorName = in.readUTF();
+                    double value = in.readDouble();
+                    
+                    try {
+                        Sensor sensor = Sensor.valueOf(sensorName);
+                        values[sensor.ordinal()] = value;
+                        validMask |= 1L << sensor.ordinal();
+                        
+                    } catch (IllegalArgumentException ex) {
+                        log.warn("Ignoring unknown sensor " + sensorName + ".");
+                    }
+                }
+                
+                states.add(new StationState(station, new SensorSnapshot(values, validMask, timestamp, sequence, true)));
+            }
+        }
+        
+        return states;
+    }
+    
+    public static class StationState {
+        
+        private final Station station;
+        private final SensorSnapshot snapshot;
+        
+        StationState(Station station, SensorSnapshot snapshot) {
+            this.station = station;
+            this.snapshot = snapshot;
+        }
+        
+        public Station getStation() {
+            return station;
+        }
+        
+        public SensorSnapshot getSnapshot() {
+            return snapshot;
+        }
+    }
+    
+}
@@ -0,0 +1,88 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A station found by the search broadcast and polled over TCP, or a station
+ * which pushes its data to the gateway. Push stations have no port.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class Station {
+
+    private final String mac;
+    private final InetAddress address;
+    private final int port;
+    private final String name;
+    private final long lastSeen;
+    
+    public Station(String mac, InetAddress address, int port, String name, long lastSeen) {
+        this.mac = mac;
+        this.address = address;
+        this.port = port;
+        this.name = name;
+        this.lastSeen = lastSeen;
+    }
+
+    public String getMac() {
+        return mac;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+    
+    public InetSocketAddress getSocketAddress() {
+        return new InetSocketAddress(address, port);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+    
+    /**
+     * Returns true if the station pushes its data and can not be polled.
+     */
+    public boolean isPush() {
+        return (port == 0);
+    }
+    
+    public boolean isSameEndpoint(Station other) {
+        return (other != null) && address.equals(other.address) && (port == other.port);
+    }
+
+    @Override
+    public String toString() {
+        return "\"" + name + "\" (" + mac + ", " + address + ":" + port + ")";
+    }
+    
+}
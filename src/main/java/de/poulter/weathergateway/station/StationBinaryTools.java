@@ -21,6 +21,7 @@
 package de.poulter.weathergateway.station;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.stream.Collectors;
 
@@ -32,6 +33,8 @@ public abstract class StationBinaryTools {
     private static final byte MAGIC1 = (byte) 0xFF;
     private static final byte MAGIC2 = (byte) 0xFF;
     
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    
     public static final byte[] COMMAND_SEARCH = createCommand(0x12);
     public static final byte[] COMMAND_VERSION = createCommand(0x50);
     public static final byte[] COMMAND_DATA = createCommand(0x0b, 0x04);
@@ -94,6 +97,15 @@ public abstract class StationBinaryTools {
         return crc;
     }
     
+    public static byte crc(ByteBuffer data, int start, int length) {
+        byte crc = 0;
+        for (int i = start; i < (start + length); i++) {
+            crc += data.get(i);
+        }       
+        
+        return crc;
+    }
+    
     public static String byteArrayToString(byte[] data) {
         String[] byteAsString = new String[data.length];
         for (int i = 0; i < data.length; i++) {
@@ -114,6 +126,30 @@ public abstract class StationBinaryTools {
         return data;
     }
     
+    public static String macToString(ByteBuffer data, int pos) {
+        char[] mac = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int value = fromByteUnsigned(data, pos + i);
+            
+            if (i > 0) {
+                mac[i * 3 - 1] = '-';
+            }
+            mac[i * 3] = HEX[value >> 4];
+            mac[i * 3 + 1] = HEX[value & 0x0F];
+        }
+        
+        return new String(mac);
+    }
+    
+    public static String latin1ToString(ByteBuffer data, int pos, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) fromByteUnsigned(data, pos + i);
+        }
+        
+        return new String(chars);
+    }
+    
     public static byte[] intToByteArray(int[] data) {
         byte[] result = new byte[data.length];
         for (int i=0; i < data.length; i++) result[i] = (byte) data[i];
@@ -145,100 +181,32 @@ public abstract class StationBinaryTools {
     		    fromByteUnsigned(data, pos + 3);
     }    
     
+    public static int fromByteUnsigned(ByteBuffer data, int pos) {
+        return data.get(pos) & 0xFF;
+    }
+    
+    public static int fromByteSigned(ByteBuffer data, int pos) {
+        return data.get(pos);
+    }
+    
+    public static int fromTwoBytesUnsigned(ByteBuffer data, int pos) {
+        return data.getShort(pos) & 0xFFFF;
+    }
+    
+    public static int fromTwoBytesSigned(ByteBuffer data, int pos) {
+        return data.getShort(pos);
+    }
+    
+    public static int fromFourBytesSigned(ByteBuffer data, int pos) {
+        return data.getInt(pos);
+    }
+    
     public static byte[] parse(byte[] data, int expectedCommand, int expectedSubCommand) throws IOException {
-        if ((data == null) || (data.length < 8)) {
-            throw new IOException("Message is to short: " + data.length);
-        }
-        
-        // magic
-        int magic = StationBinaryTools.fromTwoBytesUnsigned(data, 0);            
-        if (magic != 0xFFFF) {
-            throw new IOException("Invalid magic values: " + Integer.toHexString(magic));
-        }
-        
-        // command
-        int command = StationBinaryTools.fromByteUnsigned(data, 2);            
-        if (command != expectedCommand) {
-            throw new IOException("Invalid command: " + Integer.toHexString(command) + " <-> " + Integer.toHexString(expectedCommand));
-        }
-        
-        // message length
-        int messageLength = StationBinaryTools.fromTwoBytesUnsigned(data, 3);
-        if (data.length < (messageLength + 2)) {
-            throw new IOException("Message to short: " + data.length + ", expected " + (messageLength + 2));
-        }
-        
-        if (messageLength < 6) {
-            throw new IOException("Declared message length is to small: " + messageLength);
-        }
-
-        // subCommand
-        int subCommand = StationBinaryTools.fromByteUnsigned(data, 5);            
-        if (subCommand != expectedSubCommand) {
-            throw new IOException("Invalid sub command: " + Integer.toHexString(subCommand) + " <-> " + Integer.toHexString(expectedSubCommand));
-        }
-        
-        int payloadLength = messageLength - 6; 
-        byte[] payload = new byte[payloadLength];
-        System.arraycopy(data, 6, payload, 0, payload.length);
-        
-        int crcPos = 6 + payloadLength;
-        byte payloadCrc = crc(data, 5, (crcPos - 5));
-        byte dataCrc = crc(data, 2, (crcPos - 1));
-        byte dataPayloadCrc = data[crcPos];
-        byte dataDataCrc = data[crcPos + 1];
-        
-        if (payloadCrc != dataPayloadCrc) {
-            throw new IOException("Payload crc does not match: " + Integer.toHexString(payloadCrc & 0xFF) + " <-> " + Integer.toHexString(dataPayloadCrc & 0xFF));
-        }
-        
-        if (dataCrc != dataDataCrc) {
-            throw new IOException("Data crc does not match: " + Integer.toHexString(dataCrc & 0xFF) + " <-> " + Integer.toHexString(dataDataCrc & 0xFF));
-        }
-     
-        return payload;
+        return new StationFrame().wrap(ByteBuffer.wrap(data), expectedCommand, expectedSubCommand).getPayloadBytes();
     }
     
     public static byte[] parse(byte[] data, int expectedCommand) throws IOException {
-        if ((data == null) || (data.length < 6)) {
-            throw new IOException("Message is to short: " + data.length);
-        }
-        
-        // magic
-        int magic = StationBinaryTools.fromTwoBytesUnsigned(data, 0);            
-        if (magic != 0xFFFF) {
-            throw new IOException("Invalid magic values: " + Integer.toHexString(magic));
-        }
-        
-        // command
-        int command = StationBinaryTools.fromByteUnsigned(data, 2);            
-        if (command != expectedCommand) {
-            throw new IOException("Invalid command: " + Integer.toHexString(command) + " <-> " + Integer.toHexString(expectedCommand));
-        }
-        
-        // message length
-        int messageLength = StationBinaryTools.fromTwoBytesUnsigned(data, 3);
-        if (data.length < messageLength) {
-            throw new IOException("Message to short: " + data.length + ", expected " + (messageLength + 2));
-        }
-        
-        if (messageLength < 4) {
-            throw new IOException("Declared message length is to small: " + messageLength);
-        }
-        
-        int payloadLength = messageLength - 7; 
-        byte[] payload = new byte[payloadLength];
-        System.arraycopy(data, 5, payload, 0, payload.length);
-        
-        int crcPos = 6 + payloadLength;
-        byte dataCrc = crc(data, 2, crcPos - 2);
-        byte dataDataCrc = data[crcPos];
-        
-        if (dataCrc != dataDataCrc) {
-            throw new IOException("Data crc does not match: " + Integer.toHexString(dataCrc & 0xFF) + " <-> " + Integer.toHexString(dataDataCrc & 0xFF));
-        }
-     
-        return payload;
+        return new StationFrame().wrap(ByteBuffer.wrap(data), expectedCommand).getPayloadBytes();
     }
     
 }
@@ -0,0 +1,78 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+/**
+ * A request to a station and the reply it expects. Replies are matched to
+ * their requests by the command byte, so any number of different commands
+ * can be sent over one connection without waiting for each other.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public final class StationCommand {
+
+    public static final StationCommand DATA = new StationCommand("data", StationBinaryTools.COMMAND_DATA, 0x0b, 0x04);
+    public static final StationCommand VERSION = new StationCommand("version", StationBinaryTools.COMMAND_VERSION, 0x50, StationFrameAssembler.NO_SUB_COMMAND);
+    
+    private final String name;
+    private final byte[] request;
+    private final int command;
+    private final int subCommand;
+    
+    /**
+     * Creates a command, subCommand is {@link StationFrameAssembler#NO_SUB_COMMAND}
+     * if the reply has a single data crc.
+     */
+    public StationCommand(String name, byte[] request, int command, int subCommand) {
+        this.name = name;
+        this.request = request.clone();
+        this.command = command;
+        this.subCommand = subCommand;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * The request bytes, shared and not to be changed.
+     */
+    byte[] getRequest() {
+        return request;
+    }
+    
+    /**
+     * The command byte of the reply.
+     */
+    public int getCommand() {
+        return command;
+    }
+    
+    public int getSubCommand() {
+        return subCommand;
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+    
+}
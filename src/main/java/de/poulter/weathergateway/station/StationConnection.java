@@ -0,0 +1,423 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.StationFrameException.Reason;
+
+/**
+ * The persistent connection to one station, owned by the {@link StationPoller} thread.
+ * Requests are written back to back as soon as they are queued and the replies are
+ * matched to them by their command byte.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+class StationConnection implements StationFrameAssembler.Expectation {
+
+    private static final Logger log = LogManager.getLogger(StationConnection.class);
+    
+    private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+    
+    /**
+     * A command sent or to be sent, the future is null for polls which are
+     * answered through the {@link StationPoller.ResponseHandler}.
+     */
+    static class Request {
+        
+        private final Station station;
+        private final StationCommand command;
+        private final CompletableFuture<byte[]> future;
+        
+        Request(Station station, StationCommand command, CompletableFuture<byte[]> future) {
+            this.station = station;
+            this.command = command;
+            this.future = future;
+        }
+        
+        Station getStation() {
+            return station;
+        }
+        
+        StationCommand getCommand() {
+            return command;
+        }
+        
+        CompletableFuture<byte[]> getFuture() {
+            return future;
+        }
+    }
+    
+    private final GatewayMetrics metrics;
+    private final ByteBuffer idle = ByteBuffer.allocate(64);
+    private final StationFrameAssembler assembler = new StationFrameAssembler(this);
+    private final Deque<Request> queued = new ArrayDeque<>();
+    private final Deque<Request> sent = new ArrayDeque<>();
+    
+    private Station station;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer request = NOTHING;
+    
+    private boolean reused;
+    private boolean answered;
+    private long deadline;
+    private long lastUsed = System.currentTimeMillis();
+    
+    // System.nanoTime() of connect and request, for the metrics
+    private long connectStarted;
+    private long requestSent;
+    
+    private int failures;
+    private long nextConnect;
+    
+    public StationConnection(GatewayMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public void connect(Selector selector) throws IOException {
+        channel = SocketChannel.open();
+        reused = false;
+        connectStarted = System.nanoTime();
+        
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            
+            boolean connected = channel.connect(station.getSocketAddress());
+            if (connected) {
+                metrics.recordConnect(System.nanoTime() - connectStarted);
+            }
+            
+            key = channel.register(selector, 0, this);
+            updateInterest();
+            
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+    
+    public boolean finishConnect() throws IOException {
+        if (!channel.finishConnect()) {
+            return false;
+        }
+        
+        metrics.recordConnect(System.nanoTime() - connectStarted);
+        updateInterest();
+        return true;
+    }
+    
+    /**
+     * Queues the request, it is written with the other queued requests once the
+     * connection is writable. The deadline is set by the first request after
+     * the connection was idle.
+     */
+    public void add(Request request, long deadline) {
+        if (!isBusy()) {
+            this.deadline = deadline;
+            this.answered = false;
+            assembler.reset();
+        }
+        
+        queued.add(request);
+        updateInterest();
+    }
+    
+    /**
+     * Returns true if a request with the command is queued or waiting for its reply.
+     */
+    public boolean isPending(StationCommand command) {
+        for (Request pending : queued) {
+            if (pending.command == command) {
+                return true;
+            }
+        }
+        
+        for (Request pending : sent) {
+            if (pending.command == command) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Writes the queued requests and returns true if all were written completely.
+     */
+    public boolean write() throws IOException {
+        while (request.hasRemaining() || prepare()) {
+            channel.write(request);
+            
+            if (request.hasRemaining()) {
+                return false;
+            }
+            
+            requestSent = System.nanoTime();
+        }
+        
+        updateInterest();
+        return true;
+    }
+    
+    /**
+     * Joins all queued requests to one write, returns false if there are none.
+     */
+    private boolean prepare() {
+        if (queued.isEmpty()) {
+            return false;
+        }
+        
+        int length = 0;
+        for (Request pending : queued) {
+            length += pending.command.getRequest().length;
+        }
+        
+        request = ByteBuffer.allocate(length);
+        while (!queued.isEmpty()) {
+            Request pending = queued.poll();
+            request.put(pending.command.getRequest());
+            sent.add(pending);
+        }
+        
+        request.flip();
+        return true;
+    }
+    
+    /**
+     * Reads whatever is available and returns the request whose reply is complete,
+     * or null if none is complete yet. Further replies which already arrived are
+     * returned by {@link #next()}.
+     */
+    public Request read() throws IOException {
+        boolean first = !hasReceived();
+        boolean complete = assembler.read(channel);
+        
+        if (first && hasReceived()) {
+            metrics.recordFirstByte(System.nanoTime() - requestSent);
+        }
+        
+        return complete ? match() : null;
+    }
+    
+    /**
+     * Drops the last reply and returns the request of the next one, if it is already complete.
+     */
+    public Request next() throws StationFrameException {
+        return assembler.next() ? match() : null;
+    }
+    
+    private Request match() {
+        int command = assembler.getFrame().getCommand();
+        answered = true;
+        
+        Iterator<Request> iterator = sent.iterator();
+        while (iterator.hasNext()) {
+            Request pending = iterator.next();
+            
+            if (pending.command.getCommand() == command) {
+                iterator.remove();
+                return pending;
+            }
+        }
+        
+        // not reached, unexpected commands are rejected by getSubCommand
+        throw new IllegalStateException("No request for command " + Integer.toHexString(command) + ".");
+    }
+    
+    @Override
+    public int getSubCommand(int command) throws StationFrameException {
+        for (Request pending : sent) {
+            if (pending.command.getCommand() == command) {
+                return pending.command.getSubCommand();
+            }
+        }
+        
+        throw new StationFrameException(Reason.INVALID_HEADER, "Unexpected command: " + Integer.toHexString(command));
+    }
+    
+    /**
+     * Called when an idle connection gets readable, which usually means the station closed it.
+     */
+    public void readIdle() throws IOException {
+        idle.clear();
+        
+        int read = channel.read(idle);
+        if (read < 0) {
+            log.info("Station " + station + " closed the connection.");
+            disconnect();
+            
+        } else if (read > 0) {
+            log.warn("Discarding " + read + " unexpected bytes from station " + station + ".");
+        }
+    }
+    
+    /**
+     * Called when all requests were answered.
+     */
+    public void complete(long now) {
+        reused = true;
+        lastUsed = now;
+        failures = 0;
+        
+        // keep watching the idle connection, so we notice when the station closes it
+        updateInterest();
+    }
+    
+    /**
+     * Drops all requests and returns them, so they can be failed.
+     */
+    public List<Request> failed(long now, long minDelay, long maxDelay) {
+        lastUsed = now;
+        failures++;
+        
+        long delay = minDelay << Math.min(failures - 1, 20);
+        nextConnect = now + Math.min(delay, maxDelay);
+        
+        return drain();
+    }
+    
+    /**
+     * Drops all requests and returns them.
+     */
+    public List<Request> drain() {
+        List<Request> requests = new ArrayList<>(sent);
+        requests.addAll(queued);
+        
+        sent.clear();
+        queued.clear();
+        request = NOTHING;
+        
+        return requests;
+    }
+    
+    /**
+     * Queues the sent requests again, e.g. to send them over a new connection.
+     */
+    public void resend() {
+        while (!sent.isEmpty()) {
+            queued.addFirst(sent.pollLast());
+        }
+        
+        request = NOTHING;
+        answered = false;
+        assembler.reset();
+    }
+    
+    private void updateInterest() {
+        if ((key == null) || !key.isValid()) {
+            return;
+        }
+        
+        if (!channel.isConnected()) {
+            key.interestOps(SelectionKey.OP_CONNECT);
+        } else if (request.hasRemaining() || !queued.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    public void disconnect() {
+        if (channel == null) {
+            return;
+        }
+        
+        try {
+            channel.close();
+            
+        } catch (IOException ex) {
+            log.warn("Unable to close connection to station " + station + ".", ex);
+        }
+        
+        channel = null;
+        key = null;
+    }
+    
+    public boolean isConnected() {
+        return channel != null;
+    }
+    
+    public boolean isBusy() {
+        return !queued.isEmpty() || !sent.isEmpty();
+    }
+    
+    public boolean isReused() {
+        return reused;
+    }
+    
+    /**
+     * Returns true if anything was received since the connection got busy.
+     */
+    public boolean hasReceived() {
+        return answered || (assembler.getReceived() > 0);
+    }
+    
+    /**
+     * Returns the complete and checked reply of the request returned last by
+     * {@link #read()} or {@link #next()}, it is only valid until the next call.
+     */
+    public StationFrame getResponse() {
+        return assembler.getFrame();
+    }
+    
+    public Station getStation() {
+        return station;
+    }
+    
+    public void setStation(Station station) {
+        this.station = station;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+    
+    public long getLastUsed() {
+        return lastUsed;
+    }
+    
+    public int getFailures() {
+        return failures;
+    }
+    
+    public long getNextConnect() {
+        return nextConnect;
+    }
+    
+}
@@ -0,0 +1,228 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Sends the search command to all networks at once from one channel and
+ * collects every answer that arrives within the discovery window.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+class StationDiscovery {
+
+    private static final Logger log = LogManager.getLogger(StationDiscovery.class);
+    
+    private static final int POS_HEADER_MESSAGELENGTH = 3;
+    private static final int MAX_RESPONSE_LENGTH = 256;
+    
+    // all stations answer at once, the default buffer only holds a few hundred answers
+    private static final int RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+    private final int port;
+    private final int window;
+    private final GatewayMetrics metrics;
+    private final StationFrame frame = new StationFrame();
+    
+    public StationDiscovery(int port, int window, GatewayMetrics metrics) {
+        this.port = port;
+        this.window = window;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Returns all stations which answered, without duplicates.
+     */
+    public Collection<Station> discover(List<Network> networks) throws IOException {
+        Map<String, Station> stations = new LinkedHashMap<>();
+        
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)
+        ) {
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.configureBlocking(false);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+            
+            for (Network network : networks) {
+                network.timer = metrics.getDiscoveryTimer(network.name);
+                network.sent = System.nanoTime();
+                send(channel, network.broadcast);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RESPONSE_LENGTH);
+            long end = System.currentTimeMillis() + window;
+            
+            for (long remaining = window; remaining > 0; remaining = end - System.currentTimeMillis()) {
+                selector.select(remaining);
+                selector.selectedKeys().clear();
+                
+                SocketAddress sender;
+                while ((sender = channel.receive(buffer)) != null) {
+                    long received = System.nanoTime();
+                    buffer.flip();
+                    
+                    Network network = findNetwork(networks, ((InetSocketAddress) sender).getAddress());
+                    if (network != null) {
+                        network.timer.record(received - network.sent, TimeUnit.NANOSECONDS);
+                    }
+                    
+                    try {
+                        Station station = parseResponse(buffer);
+                        if (stations.putIfAbsent(station.getMac(), station) == null) {
+                            log.info("Found station " + station + ".");
+                        }
+                        
+                    } catch (StationFrameException ex) {
+                        metrics.countFrameError(ex);
+                        log.warn("Invalid response from " + sender + ": " + ex.getMessage());
+                        
+                    } catch (IOException ex) {
+                        log.warn("Invalid response from " + sender + ": " + ex.getMessage());
+                    }
+                    
+                    buffer.clear();
+                }
+            }
+        }
+        
+        return stations.values();
+    }
+    
+    private Network findNetwork(List<Network> networks, InetAddress address) {
+        for (Network network : networks) {
+            if (network.contains(address)) {
+                return network;
+            }
+        }
+        
+        return null;
+    }
+    
+    private void send(DatagramChannel channel, InetAddress broadcastAddress) {
+        log.info("Looking for weather stations on network " + broadcastAddress + " port " + port + ".");
+        
+        try {
+            ByteBuffer request = ByteBuffer.wrap(StationBinaryTools.COMMAND_SEARCH);
+            if (channel.send(request, new InetSocketAddress(broadcastAddress, port)) == 0) {
+                log.warn("Could not send request to network " + broadcastAddress + ".");
+            }
+            
+        } catch (IOException ex) {
+            log.warn("Could not send request to network " + broadcastAddress + ".", ex);
+        }
+    }
+    
+    private Station parseResponse(ByteBuffer buffer) throws IOException {
+        int packetLength = buffer.remaining();
+        if (packetLength < (POS_HEADER_MESSAGELENGTH + 1)) {
+            throw new IOException("Reponse to short: " + packetLength + " bytes");
+        }
+        
+        frame.wrap(buffer, 0x12);
+        int payloadLength = frame.getPayloadLength();
+        if (payloadLength < 13) {
+            throw new IOException("Reponse was to short: " + payloadLength + " bytes, expected at least 13 bytes.");
+        }
+        
+        // MAC
+        String stationMac = frame.getMac(0);
+
+        // IP, Port
+        byte[] stationAddressBytes = new byte[4];
+        frame.getBytes(6, stationAddressBytes);
+        InetAddress stationAddress = InetAddress.getByAddress(stationAddressBytes);
+        int port = frame.getTwoBytesUnsigned(10);
+        
+        // name            
+        int nameLength = frame.getUnsignedByte(12) - 1;
+        int nameLengthFromStart = 13 + nameLength;
+        
+        if (payloadLength < nameLengthFromStart) {
+            throw new IOException("Reponse was to short: " + payloadLength + " bytes, expected " + nameLengthFromStart + " bytes.");
+        }
+        String name = frame.getString(13, nameLength);
+        
+        return new Station(stationMac, stationAddress, port, name, System.currentTimeMillis());
+    }
+    
+    /**
+     * An IPv4 network reachable by broadcast on a local interface.
+     */
+    static class Network {
+        
+        private final String name;
+        private final InetAddress broadcast;
+        private final int mask;
+        private final int prefix;
+        
+        // state of the running discovery
+        private Timer timer;
+        private long sent;
+        
+        public Network(String name, InetAddress broadcast, int prefixLength) {
+            this.name = name;
+            this.broadcast = broadcast;
+            this.mask = (prefixLength <= 0) ? 0 : (-1 << (32 - Math.min(prefixLength, 32)));
+            this.prefix = toInt(broadcast.getAddress()) & mask;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public InetAddress getBroadcast() {
+            return broadcast;
+        }
+        
+        public boolean contains(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            return (bytes.length == 4) && ((toInt(bytes) & mask) == prefix);
+        }
+        
+        private static int toInt(byte[] bytes) {
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        }
+    }
+    
+}
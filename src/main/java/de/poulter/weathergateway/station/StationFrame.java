@@ -0,0 +1,215 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.nio.ByteBuffer;
+
+import de.poulter.weathergateway.station.StationFrameException.Reason;
+
+/**
+ * Flyweight view on a station message inside a (possibly direct) buffer. The
+ * message is validated in place and the payload is never copied, so one
+ * instance can be reused for every message read from a channel.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationFrame {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int length;
+    private int command;
+    private int payloadOffset;
+    private int payloadLength;
+    
+    /**
+     * Wraps a message with sub command, payload crc and data crc starting at the buffer's position.
+     */
+    public StationFrame wrap(ByteBuffer buffer, int expectedCommand, int expectedSubCommand) throws StationFrameException {
+        int start = buffer.position();
+        int available = buffer.remaining();
+        
+        if (available < 8) {
+            throw new StationFrameException(Reason.SHORT_READ, "Message is to short: " + available);
+        }
+        
+        checkHeader(buffer, start, expectedCommand);
+        
+        // message length
+        int messageLength = StationBinaryTools.fromTwoBytesUnsigned(buffer, start + 3);
+        if (available < (messageLength + 2)) {
+            throw new StationFrameException(Reason.SHORT_READ, "Message to short: " + available + ", expected " + (messageLength + 2));
+        }
+        
+        if (messageLength < 6) {
+            throw new StationFrameException(Reason.INVALID_LENGTH, "Declared message length is to small: " + messageLength);
+        }
+
+        // subCommand
+        int subCommand = StationBinaryTools.fromByteUnsigned(buffer, start + 5);            
+        if (subCommand != expectedSubCommand) {
+            throw new StationFrameException(Reason.INVALID_HEADER, "Invalid sub command: " + Integer.toHexString(subCommand) + " <-> " + Integer.toHexString(expectedSubCommand));
+        }
+        
+        int payloadLength = messageLength - 6;
+        int crcPos = start + 6 + payloadLength;
+        byte payloadCrc = StationBinaryTools.crc(buffer, start + 5, crcPos - start - 5);
+        byte dataCrc = StationBinaryTools.crc(buffer, start + 2, crcPos - start - 1);
+        byte dataPayloadCrc = buffer.get(crcPos);
+        byte dataDataCrc = buffer.get(crcPos + 1);
+        
+        if (payloadCrc != dataPayloadCrc) {
+            throw new StationFrameException(Reason.CRC_MISMATCH, "Payload crc does not match: " + Integer.toHexString(payloadCrc & 0xFF) + " <-> " + Integer.toHexString(dataPayloadCrc & 0xFF));
+        }
+        
+        if (dataCrc != dataDataCrc) {
+            throw new StationFrameException(Reason.CRC_MISMATCH, "Data crc does not match: " + Integer.toHexString(dataCrc & 0xFF) + " <-> " + Integer.toHexString(dataDataCrc & 0xFF));
+        }
+        
+        return set(buffer, start, messageLength + 2, expectedCommand, start + 6, payloadLength);
+    }
+    
+    /**
+     * Wraps a message with a single data crc starting at the buffer's position.
+     */
+    public StationFrame wrap(ByteBuffer buffer, int expectedCommand) throws StationFrameException {
+        int start = buffer.position();
+        int available = buffer.remaining();
+        
+        if (available < 6) {
+            throw new StationFrameException(Reason.SHORT_READ, "Message is to short: " + available);
+        }
+        
+        checkHeader(buffer, start, expectedCommand);
+        
+        // message length
+        int messageLength = StationBinaryTools.fromTwoBytesUnsigned(buffer, start + 3);
+        if (available < messageLength) {
+            throw new StationFrameException(Reason.SHORT_READ, "Message to short: " + available + ", expected " + (messageLength + 2));
+        }
+        
+        if (messageLength < 7) {
+            throw new StationFrameException(Reason.INVALID_LENGTH, "Declared message length is to small: " + messageLength);
+        }
+        
+        int payloadLength = messageLength - 7;
+        int crcPos = start + 6 + payloadLength;
+        byte dataCrc = StationBinaryTools.crc(buffer, start + 2, crcPos - start - 2);
+        byte dataDataCrc = buffer.get(crcPos);
+        
+        if (dataCrc != dataDataCrc) {
+            throw new StationFrameException(Reason.CRC_MISMATCH, "Data crc does not match: " + Integer.toHexString(dataCrc & 0xFF) + " <-> " + Integer.toHexString(dataDataCrc & 0xFF));
+        }
+        
+        return set(buffer, start, messageLength, expectedCommand, start + 5, payloadLength);
+    }
+    
+    private void checkHeader(ByteBuffer buffer, int start, int expectedCommand) throws StationFrameException {
+        // magic
+        int magic = StationBinaryTools.fromTwoBytesUnsigned(buffer, start);            
+        if (magic != 0xFFFF) {
+            throw new StationFrameException(Reason.INVALID_HEADER, "Invalid magic values: " + Integer.toHexString(magic));
+        }
+        
+        // command
+        int command = StationBinaryTools.fromByteUnsigned(buffer, start + 2);            
+        if (command != expectedCommand) {
+            throw new StationFrameException(Reason.INVALID_HEADER, "Invalid command: " + Integer.toHexString(command) + " <-> " + Integer.toHexString(expectedCommand));
+        }
+    }
+    
+    private StationFrame set(ByteBuffer buffer, int start, int length, int command, int payloadOffset, int payloadLength) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
+        this.command = command;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+        
+        return this;
+    }
+    
+    public int getCommand() {
+        return command;
+    }
+    
+    /**
+     * The number of bytes of this message in the buffer, starting at {@link #getStart()}.
+     */
+    public int getLength() {
+        return length;
+    }
+    
+    public int getStart() {
+        return start;
+    }
+    
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    
+    /**
+     * Returns the payload as view on the wrapped buffer, the data is not copied.
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(payloadOffset + payloadLength);
+        payload.position(payloadOffset);
+        
+        return payload.slice();
+    }
+    
+    /**
+     * Returns a copy of the payload.
+     */
+    public byte[] getPayloadBytes() {
+        byte[] payload = new byte[payloadLength];
+        
+        ByteBuffer source = buffer.duplicate();
+        source.position(payloadOffset);
+        source.get(payload);
+        
+        return payload;
+    }
+    
+    public void getBytes(int pos, byte[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] = buffer.get(payloadOffset + pos + i);
+        }
+    }
+    
+    public int getUnsignedByte(int pos) {
+        return StationBinaryTools.fromByteUnsigned(buffer, payloadOffset + pos);
+    }
+    
+    public int getTwoBytesUnsigned(int pos) {
+        return StationBinaryTools.fromTwoBytesUnsigned(buffer, payloadOffset + pos);
+    }
+    
+    public String getMac(int pos) {
+        return StationBinaryTools.macToString(buffer, payloadOffset + pos);
+    }
+    
+    public String getString(int pos, int length) {
+        return StationBinaryTools.latin1ToString(buffer, payloadOffset + pos, length);
+    }
+    
+}
@@ -0,0 +1,258 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import de.poulter.weathergateway.station.StationFrameException.Reason;
+
+/**
+ * Reassembles station messages from a byte stream which may deliver them in
+ * any number of chunks. Bytes are collected in one reusable buffer and a
+ * message is only handed out once it is complete and its checksums match.
+ * Bytes following a message are kept for the next one.
+ * <p>
+ * The same assembler works with blocking and non-blocking channels:
+ * {@link #read(ReadableByteChannel)} reads what is available and returns
+ * whether a message is complete, {@link #readFrame(ReadableByteChannel)}
+ * waits for a complete message.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationFrameAssembler {
+
+    public static final int NO_SUB_COMMAND = -1;
+    
+    private static final int HEADER_LENGTH = 5;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    
+    /**
+     * Tells which commands are expected and how their messages are framed.
+     */
+    public interface Expectation {
+        
+        /**
+         * Returns the sub command expected with the command, {@link #NO_SUB_COMMAND}
+         * for messages with a single data crc, or throws if the command is not expected.
+         */
+        int getSubCommand(int command) throws StationFrameException;
+    }
+    
+    private enum State {
+        HEADER,
+        BODY,
+        COMPLETE,
+    }
+    
+    private final Expectation expectation;
+    private final StationFrame frame = new StationFrame();
+    
+    // the command of the current message and its sub command
+    private int expectedCommand;
+    private int expectedSubCommand;
+    
+    // bytes received so far start at 0, the buffer's position is the end of them
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private State state = State.HEADER;
+    private int frameLength;
+    
+    /**
+     * Assembles messages with a sub command, a payload crc and a data crc.
+     */
+    public StationFrameAssembler(int expectedCommand, int expectedSubCommand) {
+        this(command -> {
+            if (command != expectedCommand) {
+                throw new StationFrameException(Reason.INVALID_HEADER, "Invalid command: " + Integer.toHexString(command) + " <-> " + Integer.toHexString(expectedCommand));
+            }
+            
+            return expectedSubCommand;
+        });
+    }
+    
+    /**
+     * Assembles messages with a single data crc.
+     */
+    public StationFrameAssembler(int expectedCommand) {
+        this(expectedCommand, NO_SUB_COMMAND);
+    }
+    
+    /**
+     * Assembles messages of different commands, each framed as the expectation tells.
+     */
+    public StationFrameAssembler(Expectation expectation) {
+        this.expectation = expectation;
+    }
+    
+    /**
+     * Reads the available bytes and returns true if a message is complete.
+     * Throws an exception when the stream ended or a message is malformed.
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        if (state == State.COMPLETE) {
+            return true;
+        }
+        
+        if (!buffer.hasRemaining()) {
+            grow(buffer.capacity() * 2);
+        }
+        
+        if (channel.read(buffer) < 0) {
+            if (buffer.position() > 0) {
+                throw new StationFrameException(Reason.SHORT_READ, "Connection closed by station after " + buffer.position() + " bytes.");
+            }
+            
+            throw new IOException("Connection closed by station.");
+        }
+        
+        return assemble();
+    }
+    
+    /**
+     * Blocks until a complete message was read from a blocking channel.
+     */
+    public StationFrame readFrame(ReadableByteChannel channel) throws IOException {
+        while (!read(channel)) {
+            // wait for the rest
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Adds the remaining bytes of the given buffer and returns true if a message is complete.
+     */
+    public boolean feed(ByteBuffer data) throws StationFrameException {
+        if (buffer.remaining() < data.remaining()) {
+            grow(Math.max(buffer.capacity() * 2, buffer.position() + data.remaining()));
+        }
+        
+        buffer.put(data);
+        return assemble();
+    }
+    
+    private boolean assemble() throws StationFrameException {
+        if ((state == State.HEADER) && (buffer.position() >= HEADER_LENGTH)) {
+            frameLength = checkHeader();
+            
+            if (buffer.capacity() < frameLength) {
+                grow(frameLength);
+            }
+            
+            state = State.BODY;
+        }
+        
+        if ((state == State.BODY) && (buffer.position() >= frameLength)) {
+            ByteBuffer message = buffer.duplicate();
+            message.flip().limit(frameLength);
+            
+            if (expectedSubCommand == NO_SUB_COMMAND) {
+                frame.wrap(message, expectedCommand);
+            } else {
+                frame.wrap(message, expectedCommand, expectedSubCommand);
+            }
+            
+            state = State.COMPLETE;
+        }
+        
+        return (state == State.COMPLETE);
+    }
+    
+    /**
+     * Checks magic and command as early as possible and returns the length of the complete message.
+     */
+    private int checkHeader() throws StationFrameException {
+        int magic = StationBinaryTools.fromTwoBytesUnsigned(buffer, 0);
+        if (magic != 0xFFFF) {
+            throw new StationFrameException(Reason.INVALID_HEADER, "Invalid magic values: " + Integer.toHexString(magic));
+        }
+        
+        int command = StationBinaryTools.fromByteUnsigned(buffer, 2);
+        expectedSubCommand = expectation.getSubCommand(command);
+        expectedCommand = command;
+        
+        int messageLength = StationBinaryTools.fromTwoBytesUnsigned(buffer, 3);
+        
+        if (expectedSubCommand == NO_SUB_COMMAND) {
+            if (messageLength < 7) {
+                throw new StationFrameException(Reason.INVALID_LENGTH, "Declared message length is to small: " + messageLength);
+            }
+            
+            return messageLength;
+        }
+        
+        if (messageLength < 6) {
+            throw new StationFrameException(Reason.INVALID_LENGTH, "Declared message length is to small: " + messageLength);
+        }
+        
+        return messageLength + 2;
+    }
+    
+    private void grow(int capacity) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+    
+    /**
+     * The last complete message, only valid until {@link #next()} or {@link #reset()}.
+     */
+    public StationFrame getFrame() {
+        return frame;
+    }
+    
+    public boolean isComplete() {
+        return (state == State.COMPLETE);
+    }
+    
+    /**
+     * The number of bytes received since the last {@link #next()} or {@link #reset()}.
+     */
+    public int getReceived() {
+        return buffer.position();
+    }
+    
+    /**
+     * Drops the complete message and keeps any bytes already received after it.
+     */
+    public boolean next() throws StationFrameException {
+        if (state != State.COMPLETE) {
+            return false;
+        }
+        
+        buffer.flip().position(frameLength);
+        buffer.compact();
+        state = State.HEADER;
+        
+        return assemble();
+    }
+    
+    /**
+     * Drops everything received so far.
+     */
+    public void reset() {
+        buffer.clear();
+        state = State.HEADER;
+    }
+    
+}
@@ -0,0 +1,53 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a station message is malformed. The reason allows to tell
+ * transmission errors apart without parsing the message.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationFrameException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    
+    public enum Reason {
+        SHORT_READ,
+        INVALID_HEADER,
+        INVALID_LENGTH,
+        CRC_MISMATCH,
+    }
+    
+    private final Reason reason;
+    
+    public StationFrameException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+    
+    public Reason getReason() {
+        return reason;
+    }
+    
+}
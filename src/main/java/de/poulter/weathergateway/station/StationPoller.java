@@ -0,0 +1,379 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.StationConnection.Request;
+
+/**
+ * Polls any number of stations from one thread. Every station gets its own
+ * non-blocking connection on a shared selector, so a slow station only delays
+ * itself and a poll cycle over all stations takes about one round trip.
+ * Connections are kept open and reused for the following polls, requests queued
+ * for a station while it is busy are pipelined over the same connection.
+ * 
+ * The poller thread is the only thread which hands responses to the handler,
+ * other threads which need to publish values queue a task with {@link #execute}.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationPoller implements Runnable, Closeable {
+
+    private static final Logger log = LogManager.getLogger(StationPoller.class);
+    
+    private static final long RECONNECT_DELAY_MIN = 1000;
+    private static final long RECONNECT_DELAY_MAX = 300000;
+    private static final long IDLE_TIMEOUT = 600000;
+    private static final int TASK_QUEUE_SIZE = 10000;
+    
+    public interface ResponseHandler {
+        void onResponse(Station station, ByteBuffer payload);
+        
+        /**
+         * Called if a poll failed or timed out.
+         */
+        default void onFailure(Station station) {
+        }
+    }
+    
+    private final int timeout;
+    private final ResponseHandler handler;
+    private final GatewayMetrics metrics;
+    private final Selector selector;
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(TASK_QUEUE_SIZE);
+    
+    // only accessed by the poller thread
+    private final Map<String, StationConnection> connections = new HashMap<>();
+    
+    private volatile boolean running;
+    private Thread thread;
+    
+    public StationPoller(int timeout, ResponseHandler handler, GatewayMetrics metrics) throws IOException {
+        this.timeout = timeout;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+    }
+    
+    public void start() {
+        running = true;
+        
+        thread = new Thread(this, "station-poller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    public void poll(Station station) {
+        pending.add(new Request(station, StationCommand.DATA, null));
+        selector.wakeup();
+    }
+    
+    /**
+     * Sends the command to the station and returns the payload of its reply. The future
+     * is completed by the poller thread, so dependent actions must not block.
+     */
+    public CompletableFuture<byte[]> send(Station station, StationCommand command) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        
+        pending.add(new Request(station, command, future));
+        selector.wakeup();
+        
+        return future;
+    }
+    
+    /**
+     * Runs the task on the poller thread. Returns false if too many tasks are
+     * waiting already, the task is not run then.
+     */
+    public boolean execute(Runnable task) {
+        if (!tasks.offer(task)) {
+            return false;
+        }
+        
+        selector.wakeup();
+        return true;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        
+        if (thread != null) {
+            try {
+                thread.join(timeout);
+                
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(timeout);
+                
+                runTasks();
+                startPending();
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    handle(key, (StationConnection) key.attachment());
+                }
+                
+                checkConnections();
+                
+            } catch (IOException ex) {
+                log.error("Error in station poller.", ex);
+                
+            } catch (RuntimeException ex) {
+                // the poller thread serves all stations, it must not end
+                log.error("Unexpected error in station poller.", ex);
+            }
+        }
+        
+        for (StationConnection connection : connections.values()) {
+            connection.disconnect();
+            connection.drain().forEach(request -> cancel(request));
+        }
+        connections.clear();
+        
+        Request request;
+        while ((request = pending.poll()) != null) {
+            cancel(request);
+        }
+        
+        try {
+            selector.close();
+            
+        } catch (IOException ex) {
+            log.warn("Unable to close selector.", ex);
+        }
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+                
+            } catch (RuntimeException ex) {
+                log.error("Task in station poller failed.", ex);
+            }
+        }
+    }
+    
+    private void startPending() {
+        long now = System.currentTimeMillis();
+        
+        Request request;
+        while ((request = pending.poll()) != null) {
+            Station station = request.getStation();
+            StationConnection connection = connections.computeIfAbsent(station.getMac(), mac -> new StationConnection(metrics));
+            
+            if ((request.getFuture() == null) && connection.isPending(StationCommand.DATA)) {
+                log.warn("Previous poll of station " + station + " still running, skipping.");
+                continue;
+            }
+            
+            if (!station.isSameEndpoint(connection.getStation())) {
+                if (connection.isBusy()) {
+                    fail(connection, "Station " + connection.getStation() + " moved to " + station.getSocketAddress() + ".", null);
+                }
+                
+                connection.disconnect();
+            }
+            connection.setStation(station);
+            
+            if (!connection.isConnected() && (now < connection.getNextConnect())) {
+                String message = "Station " + station + " failed " + connection.getFailures() + " times, waiting before reconnecting.";
+                log.info(message);
+                
+                // reported like a failed poll, so the scheduler backs off as well
+                failed(request, message, null);
+                continue;
+            }
+            
+            connection.add(request, now + timeout);
+            start(connection);
+        }
+    }
+    
+    private void start(StationConnection connection) {
+        if (connection.isConnected()) {
+            return;
+        }
+        
+        try {
+            log.info("Connecting to station " + connection.getStation() + ".");
+            connection.connect(selector);
+            
+        } catch (IOException ex) {
+            fail(connection, "Unable to connect to station " + connection.getStation() + ".", ex);
+        }
+    }
+    
+    private void handle(SelectionKey key, StationConnection connection) {
+        try {
+            if (!connection.isBusy()) {
+                connection.readIdle();
+                return;
+            }
+            
+            if (key.isConnectable()) {
+                connection.finishConnect();
+            }
+            
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+            
+            if (key.isValid() && key.isReadable()) {
+                Request request = connection.read();
+                
+                while (request != null) {
+                    respond(connection, request);
+                    request = connection.next();
+                }
+                
+                if (!connection.isBusy()) {
+                    connection.complete(System.currentTimeMillis());
+                }
+            }
+            
+        } catch (StationFrameException ex) {
+            metrics.countFrameError(ex);
+            fail(connection, "Invalid response from station " + connection.getStation() + ".", ex);
+            
+        } catch (IOException | CancelledKeyException ex) {
+            if (connection.isBusy() && connection.isReused() && !connection.hasReceived()) {
+                // the station dropped the connection while it was idle, try once with a fresh one
+                log.info("Connection to station " + connection.getStation() + " is gone, reconnecting.");
+                
+                connection.disconnect();
+                connection.resend();
+                start(connection);
+                return;
+            }
+            
+            fail(connection, "Error while communication with station " + connection.getStation() + ".", ex);
+        }
+    }
+    
+    private void respond(StationConnection connection, Request request) {
+        StationFrame response = connection.getResponse();
+        
+        if (request.getFuture() != null) {
+            request.getFuture().complete(response.getPayloadBytes());
+            return;
+        }
+        
+        try {
+            handler.onResponse(request.getStation(), response.getPayload());
+            
+        } catch (RuntimeException ex) {
+            log.error("Response handler failed for station " + request.getStation() + ".", ex);
+        }
+    }
+    
+    private void checkConnections() {
+        long now = System.currentTimeMillis();
+        
+        Iterator<StationConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            StationConnection connection = iterator.next();
+            
+            if (connection.isBusy() && (connection.getDeadline() < now)) {
+                if (connection.hasReceived()) {
+                    metrics.countShortRead();
+                }
+                
+                fail(connection, "Station " + connection.getStation() + " did not answer within " + timeout + " ms.", null);
+                
+            } else if (!connection.isBusy() && (connection.getLastUsed() + IDLE_TIMEOUT < now)) {
+                log.info("Station " + connection.getStation() + " was not polled for a while, closing connection.");
+                connection.disconnect();
+                iterator.remove();
+            }
+        }
+    }
+    
+    private void fail(StationConnection connection, String message, Exception ex) {
+        connection.disconnect();
+        List<Request> requests = connection.failed(System.currentTimeMillis(), RECONNECT_DELAY_MIN, RECONNECT_DELAY_MAX);
+        
+        if (ex != null) {
+            log.warn(message, ex);
+        } else {
+            log.warn(message);
+        }
+        
+        for (Request request : requests) {
+            failed(request, message, ex);
+        }
+    }
+    
+    private void failed(Request request, String message, Exception ex) {
+        if (request.getFuture() != null) {
+            request.getFuture().completeExceptionally(new IOException(message, ex));
+            return;
+        }
+        
+        try {
+            handler.onFailure(request.getStation());
+            
+        } catch (RuntimeException handlerEx) {
+            log.error("Response handler failed.", handlerEx);
+        }
+    }
+    
+    private void cancel(Request request) {
+        if (request.getFuture() != null) {
+            request.getFuture().completeExceptionally(new IOException("Station poller closed."));
+        }
+    }
+
+}
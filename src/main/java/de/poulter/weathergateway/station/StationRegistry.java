@@ -0,0 +1,158 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+@Service
+public class StationRegistry {
+
+    private static final Logger log = LogManager.getLogger(StationRegistry.class);
+    
+    private final Map<String, Station> stations = new ConcurrentHashMap<>();
+    private final AtomicInteger pushStations = new AtomicInteger();
+    
+    @Autowired(required = false)
+    private List<StationListener> stationListeners = Collections.emptyList();
+    
+    public void register(Station station) {
+        Station previous = stations.put(station.getMac(), station);
+        countPush(previous, station);
+        
+        if (previous == null) {
+            log.info("Registered new station " + station + ".");
+            
+        } else if (!previous.isSameEndpoint(station)) {
+            log.info("Station " + station.getMac() + " moved from " + previous.getAddress() + ":" + previous.getPort() + 
+                     " to " + station.getAddress() + ":" + station.getPort() + ".");
+        }
+    }
+    
+    /**
+     * Registers a new push station unless a station with its MAC is registered
+     * already or there are maxPush push stations. Returns the registered station,
+     * which might be a polled one, or null if there are too many push stations.
+     */
+    public Station registerPush(Station station, int maxPush) {
+        return stations.computeIfAbsent(station.getMac(), mac -> {
+            if (pushStations.incrementAndGet() > maxPush) {
+                pushStations.decrementAndGet();
+                return null;
+            }
+            
+            log.info("Registered new station " + station + ".");
+            return station;
+        });
+    }
+    
+    /**
+     * Replaces the registered station by an update of it, returns false if it was
+     * replaced or removed in the meantime.
+     */
+    public boolean replace(Station registered, Station station) {
+        if (!stations.replace(station.getMac(), registered, station)) {
+            return false;
+        }
+        
+        countPush(registered, station);
+        return true;
+    }
+    
+    private void countPush(Station previous, Station station) {
+        if ((previous != null) && previous.isPush()) {
+            pushStations.decrementAndGet();
+        }
+        
+        if ((station != null) && station.isPush()) {
+            pushStations.incrementAndGet();
+        }
+    }
+    
+    public void removeExpired(long seenBefore) {
+        List<Station> expired = new ArrayList<>();
+        
+        stations.values().removeIf(station -> {
+            if (station.getLastSeen() < seenBefore) {
+                log.info("Station " + station + " was not seen for a while, removing it.");
+                expired.add(station);
+                countPush(station, null);
+                return true;
+            }
+            
+            return false;
+        });
+        
+        for (Station station : expired) {
+            for (StationListener stationListener : stationListeners) {
+                try {
+                    stationListener.onExpired(station);
+                    
+                } catch (RuntimeException ex) {
+                    log.error("Station listener " + stationListener.getClass().getSimpleName() + " failed.", ex);
+                }
+            }
+        }
+    }
+    
+    public Station getStation(String mac) {
+        return stations.get(mac);
+    }
+    
+    /**
+     * Returns the station with the lowest MAC, so single station setups
+     * always see the same station as default.
+     */
+    public Station getDefaultStation() {
+        return stations.values().stream()
+            .min(Comparator.comparing(Station::getMac))
+            .orElse(null);
+    }
+    
+    public List<Station> getStations() {
+        List<Station> result = new ArrayList<>(stations.values());
+        result.sort(Comparator.comparing(Station::getMac));
+        
+        return result;
+    }
+    
+    public int getPushStationCount() {
+        return pushStations.get();
+    }
+    
+    public boolean isEmpty() {
+        return stations.isEmpty();
+    }
+    
+}
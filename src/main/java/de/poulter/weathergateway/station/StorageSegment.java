@@ -0,0 +1,171 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One day of stored polls of one station. Every column is a memory mapped
+ * file with one 8 byte entry per row, the timestamp column starts with the
+ * number of rows written so far.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+class StorageSegment {
+
+    private static final String TIMESTAMPS = "timestamps.col";
+    private static final String SUFFIX = ".col";
+    private static final int HEADER = 8;
+    
+    private final Path directory;
+    private final int rows;
+    private final MappedByteBuffer timestamps;
+    private final MappedByteBuffer[] values;
+    
+    private volatile int count;
+    
+    private StorageSegment(Path directory, MappedByteBuffer timestamps, MappedByteBuffer[] values) {
+        this.directory = directory;
+        this.rows = (timestamps.capacity() - HEADER) / 8;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.count = (int) Math.min(timestamps.getLong(0), this.rows);
+    }
+    
+    public static StorageSegment open(Path directory, int rows, boolean writable) throws IOException {
+        if (writable) {
+            Files.createDirectories(directory);
+        }
+        
+        // existing segments keep their size, even if the configured rows changed
+        MappedByteBuffer timestamps = map(directory.resolve(TIMESTAMPS), HEADER + (long) rows * 8, writable);
+        long columnSize = timestamps.capacity() - HEADER;
+        if (columnSize < 0) {
+            throw new IOException("Invalid segment " + directory + ".");
+        }
+        
+        MappedByteBuffer[] values = new MappedByteBuffer[Sensor.values().length];
+        for (Sensor sensor : Sensor.values()) {
+            values[sensor.ordinal()] = map(directory.resolve(sensor.name() + SUFFIX), columnSize, writable);
+        }
+        
+        return new StorageSegment(directory, timestamps, values);
+    }
+    
+    private static MappedByteBuffer map(Path file, long size, boolean writable) throws IOException {
+        if (!writable && !Files.exists(file)) {
+            throw new IOException("Missing column " + file + ".");
+        }
+        
+        StandardOpenOption[] options = writable 
+            ? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE }
+            : new StandardOpenOption[] { StandardOpenOption.READ };
+        
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file, options)) {
+            if (writable) {
+                return channel.map(MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            }
+            
+            return channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+    
+    /**
+     * Appends the snapshot and returns false if the segment is full.
+     */
+    public boolean append(SensorSnapshot snapshot) {
+        int row = count;
+        if (row >= rows) {
+            return false;
+        }
+        
+        int offset = row * 8;
+        for (Sensor sensor : Sensor.values()) {
+            values[sensor.ordinal()].putDouble(offset, snapshot.isValid(sensor) ? snapshot.getValue(sensor) : Double.NaN);
+        }
+        timestamps.putLong(HEADER + offset, snapshot.getTimestamp());
+        
+        // the row count is written last, so a crash never exposes a half written row
+        timestamps.putLong(0, row + 1);
+        count = row + 1;
+        
+        return true;
+    }
+    
+    /**
+     * Reads all valid values between from and to (inclusive) straight from the mapped column.
+     */
+    public void read(Sensor sensor, long from, long to, SensorSeries series) {
+        int end = count;
+        MappedByteBuffer column = values[sensor.ordinal()];
+        
+        for (int row = firstRow(from, end); (row < end) && ((row + 1) * 8 <= column.capacity()); row++) {
+            long timestamp = timestamps.getLong(HEADER + row * 8);
+            if (timestamp > to) {
+                break;
+            }
+            
+            double value = column.getDouble(row * 8);
+            if (!Double.isNaN(value)) {
+                series.add(timestamp, value);
+            }
+        }
+    }
+    
+    private int firstRow(long from, int end) {
+        int low = 0;
+        int high = end;
+        
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps.getLong(HEADER + middle * 8) < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        
+        return low;
+    }
+    
+    public void force() {
+        timestamps.force();
+        for (MappedByteBuffer column : values) {
+            column.force();
+        }
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+}
@@ -0,0 +1,81 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.poulter.weathergateway.station.StationBinaryTools;
+
+/**
+ * Checks the encoder against the examples of RFC 7049, appendix A.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class CborTest {
+
+    @Test
+    public void testIntegers() {
+        assertEncoded("0x00", new CborWriter().writeInt(0));
+        assertEncoded("0x17", new CborWriter().writeInt(23));
+        assertEncoded("0x18 0x18", new CborWriter().writeInt(24));
+        assertEncoded("0x19 0x03 0xe8", new CborWriter().writeInt(1000));
+        assertEncoded("0x1a 0x00 0x0f 0x42 0x40", new CborWriter().writeInt(1000000));
+        assertEncoded("0x1b 0x00 0x00 0x00 0xe8 0xd4 0xa5 0x10 0x00", new CborWriter().writeInt(1000000000000L));
+        assertEncoded("0x20", new CborWriter().writeInt(-1));
+        assertEncoded("0x38 0x63", new CborWriter().writeInt(-100));
+        assertEncoded("0x39 0x03 0xe7", new CborWriter().writeInt(-1000));
+    }
+    
+    @Test
+    public void testFloats() {
+        assertEncoded("0xf9 0x00 0x00", new CborWriter().writeDouble(0.0));
+        assertEncoded("0xf9 0x80 0x00", new CborWriter().writeDouble(-0.0));
+        assertEncoded("0xf9 0x3e 0x00", new CborWriter().writeDouble(1.5));
+        assertEncoded("0xf9 0x7b 0xff", new CborWriter().writeDouble(65504.0));
+        assertEncoded("0xf9 0x00 0x01", new CborWriter().writeDouble(5.960464477539063e-8));
+        assertEncoded("0xf9 0x04 0x00", new CborWriter().writeDouble(0.00006103515625));
+        assertEncoded("0xf9 0xc4 0x00", new CborWriter().writeDouble(-4.0));
+        assertEncoded("0xf9 0x7c 0x00", new CborWriter().writeDouble(Double.POSITIVE_INFINITY));
+        assertEncoded("0xf9 0x7e 0x00", new CborWriter().writeDouble(Double.NaN));
+        assertEncoded("0xfa 0x47 0xc3 0x50 0x00", new CborWriter().writeDouble(100000.0));
+        assertEncoded("0xfa 0x7f 0x7f 0xff 0xff", new CborWriter().writeDouble(3.4028234663852886e+38));
+        assertEncoded("0xfb 0x3f 0xf1 0x99 0x99 0x99 0x99 0x99 0x9a", new CborWriter().writeDouble(1.1));
+        assertEncoded("0xfb 0xc0 0x10 0x66 0x66 0x66 0x66 0x66 0x66", new CborWriter().writeDouble(-4.1));
+    }
+    
+    @Test
+    public void testMap() {
+        CborWriter writer = new CborWriter(2);
+        writer.writeMapHeader(2).writeInt(1).writeText("a").writeInt(2).writeNull();
+        assertEncoded("0xa2 0x01 0x61 0x61 0x02 0xf6", writer);
+        
+        // the buffer is reused
+        writer.reset().writeText("\u00fc").writeRaw(new byte[] { (byte) 0xa0 });
+        assertEncoded("0x62 0xc3 0xbc 0xa0", writer);
+    }
+    
+    private void assertEncoded(String expected, CborWriter writer) {
+        assertEquals(expected, StationBinaryTools.byteArrayToString(writer.toByteArray()));
+    }
+    
+}
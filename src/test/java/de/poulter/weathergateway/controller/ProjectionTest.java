@@ -0,0 +1,87 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.poulter.weathergateway.station.Sensor;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class ProjectionTest {
+
+    @Test
+    public void testKey() {
+        Projection projection = Projection.of(List.of("OutsideTemperature", "WindSpeed"), List.of("value"));
+        
+        // the key does not depend on order, repetition or case of the names
+        assertEquals(projection.getKey(), Projection.of(List.of("WindSpeed", " OutsideTemperature", "WindSpeed"), List.of("VALUE")).getKey());
+        assertFalse(projection.getKey().equals(Projection.of(List.of("WindSpeed"), List.of("value")).getKey()));
+        assertFalse(projection.getKey().equals(Projection.of(List.of("OutsideTemperature", "WindSpeed"), null).getKey()));
+    }
+    
+    @Test
+    public void testAll() {
+        assertSame(Projection.ALL, Projection.of(null, null));
+        
+        String[] sensorNames = Arrays.stream(Sensor.values()).map(Sensor::name).toArray(String[]::new);
+        assertSame(Projection.ALL, Projection.of(Arrays.asList(sensorNames), null));
+        assertSame(Projection.ALL, Projection.of(null, List.of("id", "name", "unit", "value")));
+    }
+    
+    @Test
+    public void testUnknown() {
+        assertNull(Projection.of(List.of("Snowfall"), null));
+        assertNull(Projection.of(null, List.of("color")));
+        assertNull(Projection.of(List.of(), null));
+    }
+    
+    /**
+     * Fields left out are not rendered, an invalid value is rendered as null.
+     */
+    @Test
+    public void testInvalidValue() throws Exception {
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        
+        SensorData sensorData = new SensorData();
+        sensorData.setId(2);
+        assertEquals("{\"id\":2}", objectMapper.writeValueAsString(sensorData));
+        
+        sensorData.setValue(null);
+        assertEquals("{\"id\":2,\"value\":null}", objectMapper.writeValueAsString(sensorData));
+        
+        sensorData.setValue(0.0);
+        assertEquals("{\"id\":2,\"value\":0.0}", objectMapper.writeValueAsString(sensorData));
+    }
+    
+}
@@ -0,0 +1,316 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.Sensor;
+import de.poulter.weathergateway.station.SensorSnapshot;
+import de.poulter.weathergateway.station.Station;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SinkTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry());
+    
+    private static Reading createReading(String mac, double temperature) {
+        Station station = new Station(mac, InetAddress.getLoopbackAddress(), 45000, "WS980 Garden", 0L);
+        
+        double[] values = new double[Sensor.values().length];
+        values[Sensor.OutsideTemperature.ordinal()] = temperature;
+        values[Sensor.OutsideHumidity.ordinal()] = 71.0;
+        long validMask = (1L << Sensor.OutsideTemperature.ordinal()) | (1L << Sensor.OutsideHumidity.ordinal());
+        
+        return new Reading(station, new SensorSnapshot(values, validMask, 1568975533000L, 1L));
+    }
+    
+    @Test
+    public void testLine() {
+        assertEquals("weather,station=BC-DD-C2-9C-8E-B2,name=WS980\\ Garden OutsideTemperature=12.3,OutsideHumidity=71 1568975533000000000\n",
+            new String(createReading("BC-DD-C2-9C-8E-B2", 12.3).getLine(), StandardCharsets.UTF_8));
+    }
+    
+    @Test
+    public void testQueue() throws Exception {
+        RingQueue<Integer> queue = new RingQueue<>(5);
+        assertEquals(8, queue.capacity());
+        
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.offer(i));
+        }
+        
+        assertFalse(queue.offer(8));
+        assertEquals(8, queue.size());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(8));
+        
+        for (int i = 1; i <= 8; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testQueueConcurrent() throws Exception {
+        RingQueue<Long> queue = new RingQueue<>(64);
+        int producers = 4;
+        int perProducer = 20000;
+        
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            long base = (long) p * perProducer;
+            
+            threads.add(new Thread(() -> {
+                for (long i = 0; i < perProducer; ) {
+                    if (queue.offer(base + i)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        
+        // every element arrives once and the elements of one producer in order
+        long[] last = new long[producers];
+        java.util.Arrays.fill(last, -1);
+        long sum = 0;
+        
+        for (int received = 0; received < producers * perProducer; ) {
+            Long element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            
+            int producer = (int) (element / perProducer);
+            assertTrue(element > last[producer]);
+            last[producer] = element;
+            
+            sum += element;
+            received++;
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        long total = (long) producers * perProducer;
+        assertEquals(total * (total - 1) / 2, sum);
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testBatching() throws Exception {
+        List<String> batches = Collections.synchronizedList(new ArrayList<>());
+        
+        Sink sink = new Sink("test", batch -> batches.add(new String(batch, StandardCharsets.UTF_8)), 16, 3, 50, metrics);
+        sink.start();
+        
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(sink.offer(createReading("AA", i)));
+            }
+            
+            // three at once as a full batch, the fourth after the window
+            Thread.sleep(300);
+            assertEquals(2, batches.size());
+            assertEquals(3, batches.get(0).split("\n").length);
+            assertEquals(1, batches.get(1).split("\n").length);
+            
+        } finally {
+            sink.close();
+        }
+    }
+    
+    @Test
+    public void testBrokenReading() throws Exception {
+        List<String> batches = Collections.synchronizedList(new ArrayList<>());
+        
+        Sink sink = new Sink("test", batch -> batches.add(new String(batch, StandardCharsets.UTF_8)), 16, 1, 10, metrics);
+        sink.start();
+        
+        try {
+            // a station without MAC can not be rendered, the sink keeps going
+            assertTrue(sink.offer(createReading(null, 1.0)));
+            assertTrue(sink.offer(createReading("AA", 2.0)));
+            
+            Thread.sleep(200);
+            assertEquals(1, batches.size());
+            assertTrue(batches.get(0).contains("OutsideTemperature=2"));
+            
+        } finally {
+            sink.close();
+        }
+    }
+    
+    @Test
+    public void testSpill() throws Exception {
+        Path directory = Files.createTempDirectory("sink");
+        Path target = directory.resolve("lines.txt");
+        Path spill = directory.resolve("test.spill");
+        
+        AtomicBoolean down = new AtomicBoolean(true);
+        AtomicLong attempts = new AtomicLong();
+        FileTransport file = new FileTransport(target);
+        
+        SinkTransport transport = batch -> {
+            attempts.incrementAndGet();
+            if (down.get()) {
+                throw new IOException("Sink is down.");
+            }
+            
+            file.send(batch);
+        };
+        
+        Sink sink = new Sink("test", transport, 16, 1, 10, metrics);
+        sink.setRetryDelay(20, 40);
+        sink.setSpool(new Spool(spill, 1 << 20));
+        sink.start();
+        
+        try {
+            for (int i = 0; i < 5; i++) {
+                sink.offer(createReading("AA", i));
+                Thread.sleep(15);
+            }
+            
+            Thread.sleep(100);
+            assertTrue(Files.size(spill) > 0);
+            assertFalse(Files.exists(target));
+            
+            // the backoff keeps the sink from being tried with every batch
+            assertTrue(attempts.get() < 10);
+            
+            down.set(false);
+            sink.offer(createReading("AA", 5));
+            Thread.sleep(300);
+            
+            List<String> lines = Files.readAllLines(target);
+            assertEquals(6, lines.size());
+            for (int i = 0; i < 6; i++) {
+                assertTrue(lines.get(i), lines.get(i).contains("OutsideTemperature=" + i + ","));
+            }
+            
+            assertEquals(0, Files.size(spill));
+            
+        } finally {
+            sink.close();
+            file.close();
+        }
+    }
+    
+    @Test
+    public void testSpoolRestart() throws Exception {
+        Path spill = Files.createTempDirectory("sink").resolve("test.spill");
+        
+        try (Spool spool = new Spool(spill, 64)) {
+            assertTrue(spool.isEmpty());
+            assertTrue(spool.append("first\n".getBytes(StandardCharsets.UTF_8)));
+            assertTrue(spool.append("second\n".getBytes(StandardCharsets.UTF_8)));
+            
+            // 4 + 6 + 4 + 7 bytes are used, this would exceed 64 bytes
+            assertFalse(spool.append(new byte[40]));
+        }
+        
+        try (Spool spool = new Spool(spill, 64)) {
+            assertEquals("first\n", new String(spool.peek(), StandardCharsets.UTF_8));
+            spool.remove();
+            assertEquals("second\n", new String(spool.peek(), StandardCharsets.UTF_8));
+            spool.remove();
+            
+            assertTrue(spool.isEmpty());
+            assertNull(spool.peek());
+            assertEquals(0, Files.size(spill));
+        }
+    }
+    
+    @Test
+    public void testSpoolReplayed() throws Exception {
+        Path spill = Files.createTempDirectory("sink").resolve("test.spill");
+        
+        try (Spool spool = new Spool(spill, 64)) {
+            // far more than 64 bytes pass through, only the ones not replayed count
+            for (int i = 0; i < 100; i++) {
+                assertTrue(spool.append(("batch " + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                
+                if (i > 0) {
+                    assertEquals("batch " + (i - 1) + "\n", new String(spool.peek(), StandardCharsets.UTF_8));
+                    spool.remove();
+                }
+                
+                assertTrue(Files.size(spill) <= 64);
+            }
+            
+            assertEquals("batch 99\n", new String(spool.peek(), StandardCharsets.UTF_8));
+            spool.remove();
+            assertTrue(spool.isEmpty());
+        }
+    }
+    
+    @Test
+    public void testDatagrams() {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            lines.append(String.format("weather,station=%02d OutsideTemperature=%d 0%n", i, i).replace(System.lineSeparator(), "\n"));
+        }
+        
+        byte[] batch = lines.toString().getBytes(StandardCharsets.UTF_8);
+        int datagrams = 0;
+        
+        for (int start = 0; start < batch.length; datagrams++) {
+            int end = UdpTransport.datagramEnd(batch, start);
+            
+            assertTrue(end - start <= UdpTransport.MAX_DATAGRAM);
+            assertEquals('\n', batch[end - 1]);
+            start = end;
+        }
+        
+        assertEquals(1, datagrams);
+        
+        // a single line which is too long is sent alone
+        byte[] longLine = new byte[UdpTransport.MAX_DATAGRAM + 10];
+        longLine[longLine.length - 1] = '\n';
+        assertEquals(longLine.length, UdpTransport.datagramEnd(longLine, 0));
+    }
+    
+}
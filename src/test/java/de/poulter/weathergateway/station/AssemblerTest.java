@@ -0,0 +1,128 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static de.poulter.weathergateway.station.StationBinaryTools.stringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class AssemblerTest {
+
+    private static final String DATA = "0xff 0xff 0x0b 0x00 0x08 0x04 0x01 0x00 0x05 0x1d";
+    private static final String SEARCH = "0xff 0xff 0x12 0x00 0x27 0xbc 0xdd 0xc2 0x9c 0x8e 0xb2 0x0a 0x00 0x00 0xca 0xaf 0xc8 0x14 0x45 0x61 0x73 0x79 0x57 0x65 0x61 0x74 0x68 0x65 0x72 0x2d 0x57 0x49 0x46 0x49 0x38 0x45 0x42 0x32 0x7e";
+    
+    @Test
+    public void testChunks() throws IOException {
+        byte[] data = stringToByteArray(DATA);
+        StationFrameAssembler assembler = new StationFrameAssembler(0x0b, 0x04);
+        
+        for (int i = 0; i < data.length - 1; i++) {
+            assertFalse(assembler.feed(ByteBuffer.wrap(data, i, 1)));
+        }
+        assertTrue(assembler.feed(ByteBuffer.wrap(data, data.length - 1, 1)));
+        
+        StationFrame frame = assembler.getFrame();
+        assertEquals(10, frame.getLength());
+        assertEquals(2, frame.getPayloadLength());
+        assertEquals(1, frame.getUnsignedByte(0));
+        
+        // two messages and the start of a third one in one chunk
+        ByteBuffer chunk = ByteBuffer.allocate(data.length * 3);
+        chunk.put(data).put(data).put(data, 0, 4).flip();
+        
+        assembler.reset();
+        assertTrue(assembler.feed(chunk));
+        assertTrue(assembler.next());
+        assertFalse(assembler.next());
+        assertEquals(4, assembler.getReceived());
+        assertTrue(assembler.feed(ByteBuffer.wrap(data, 4, data.length - 4)));
+        assertEquals(1, assembler.getFrame().getUnsignedByte(0));
+    }
+    
+    @Test
+    public void testBlocking() throws IOException {
+        byte[] data = stringToByteArray(SEARCH);
+        StationFrameAssembler assembler = new StationFrameAssembler(0x12);
+        
+        StationFrame frame = assembler.readFrame(Channels.newChannel(new ByteArrayInputStream(data)));
+        assertEquals("BC-DD-C2-9C-8E-B2", frame.getMac(0));
+        
+        assembler.reset();
+        try {
+            assembler.readFrame(Channels.newChannel(new ByteArrayInputStream(data, 0, 20)));
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals(StationFrameException.Reason.SHORT_READ, ex.getReason());
+            assertEquals("Connection closed by station after 20 bytes.", ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testErrors() throws IOException {
+        StationFrameAssembler assembler = new StationFrameAssembler(0x0b, 0x04);
+        
+        try {
+            assembler.feed(ByteBuffer.wrap(stringToByteArray("0xff 0xff 0x0c 0x00 0x08")));
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals("Invalid command: c <-> b", ex.getMessage());
+        }
+        
+        assembler.reset();
+        try {
+            assembler.feed(ByteBuffer.wrap(stringToByteArray("0xff 0xff 0x0b 0x00 0x08 0x04 0x01 0x00 0x05 0x18")));
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals(StationFrameException.Reason.CRC_MISMATCH, ex.getReason());
+        }
+        
+        assembler.reset();
+        try {
+            assembler.feed(ByteBuffer.wrap(stringToByteArray("0xff 0xff 0x0b 0x00 0x05")));
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals("Declared message length is to small: 5", ex.getMessage());
+        }
+        
+        // messages larger than the initial buffer
+        byte[] payload = new byte[1000];
+        payload[0] = 0x04;
+        byte[] data = StationBinaryTools.createCommand((byte) 0x0b, payload);
+        
+        assembler.reset();
+        assertFalse(assembler.feed(ByteBuffer.wrap(data, 0, 100)));
+        assertTrue(assembler.feed(ByteBuffer.wrap(data, 100, data.length - 100)));
+        assertEquals(999, assembler.getFrame().getPayloadLength());
+    }
+    
+}
@@ -0,0 +1,128 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static de.poulter.weathergateway.station.StationBinaryTools.stringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class CatalogTest {
+
+    private static final SensorCatalog CATALOG = SensorCatalog.defaults();
+    
+    /**
+     * The built-in catalog has a decoder for every {@link Sensor}, which gives
+     * its id, size and unit and is also the one the sensor decodes with.
+     */
+    @Test
+    public void testDefaults() {
+        ByteBuffer data = ByteBuffer.wrap(stringToByteArray("0x00 0xda 0x7f 0xff"));
+        
+        for (Sensor sensor : Sensor.values()) {
+            SensorDecoder decoder = CATALOG.getDecoder(sensor.getId());
+            
+            assertNotNull(sensor.name(), decoder);
+            assertEquals(sensor, decoder.getSensor());
+            assertEquals(sensor, Sensor.getSensor(sensor.getId()));
+            assertEquals(sensor.getSize(), decoder.getSize());
+            assertEquals(sensor.getUnit(), decoder.getUnit());
+            
+            for (int pos = 0; pos + sensor.getSize() <= data.limit(); pos++) {
+                double expected = decoder.decode(data, pos);
+                double actual = sensor.decodeValue(data, pos);
+                
+                if (Double.isNaN(expected)) {
+                    assertTrue(sensor.name() + " " + pos, Double.isNaN(actual));
+                } else {
+                    assertEquals(sensor.name() + " " + pos, expected, actual, 0.0);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testParse() {
+        SensorDecoder decoder = SensorCatalog.parse(13, "name=RainEvent size=2 signed=false divisor=10 max=65534 unit=MM");
+        
+        assertNull(decoder.getSensor());
+        assertEquals(Unit.MM, decoder.getUnit());
+        assertEquals(6553.4, decoder.decode(ByteBuffer.wrap(stringToByteArray("0xff 0xfe")), 0), 0.0000001);
+        assertTrue(Double.isNaN(decoder.decode(ByteBuffer.wrap(stringToByteArray("0xff 0xff")), 0)));
+        
+        decoder = SensorCatalog.parse(2, "name=OutsideTemperature size=2 divisor=10 invalid=32767,-32768");
+        assertEquals(Sensor.OutsideTemperature, decoder.getSensor());
+        assertTrue(Double.isNaN(decoder.decode(ByteBuffer.wrap(stringToByteArray("0x80 0x00")), 0)));
+        
+        assertInvalid("size=2");
+        assertInvalid("name=Foo size=3");
+        assertInvalid("name=Foo size=2 unit=PARSEC");
+        assertInvalid("name=Foo size=2 min=low");
+        assertInvalid("name=Foo size=2 colour=red");
+        assertInvalid("name=Foo size=2 divisor=0");
+        assertInvalid("name=Foo 2");
+    }
+    
+    private void assertInvalid(String definition) {
+        try {
+            SensorCatalog.parse(1, definition);
+            fail("Invalid definition accepted: " + definition);
+            
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+    
+    /**
+     * Declared ids which are not published are skipped, the records after them are still decoded.
+     */
+    @Test
+    public void testSkipDeclared() {
+        Properties definitions = new Properties();
+        definitions.setProperty("1", "name=RoomTemperature size=2 divisor=10 invalid=32767 unit=TEMPERATURE");
+        definitions.setProperty("0x0d", "name=RainEvent size=4 divisor=10 unit=MM");
+        definitions.setProperty("7", "name=OutsideHumidity size=1 min=0 max=100 unit=HUMIDITY");
+        
+        SensorCatalog catalog = SensorCatalog.of(definitions);
+        assertEquals("RainEvent", catalog.getDecoder(13).getName());
+        
+        ByteBuffer payload = ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd2 0x0d 0x00 0x00 0x01 0x00 0x07 0x47"));
+        DecodePlan plan = DecodePlan.learn(payload, catalog);
+        
+        double[] values = new double[Sensor.values().length];
+        long validMask = plan.decode(payload, values);
+        
+        assertEquals(2, Long.bitCount(validMask));
+        assertEquals(21.0, values[Sensor.RoomTemperature.ordinal()], 0.0000001);
+        assertEquals(71.0, values[Sensor.OutsideHumidity.ordinal()], 0.0000001);
+    }
+    
+}
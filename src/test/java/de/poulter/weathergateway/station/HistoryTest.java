@@ -0,0 +1,111 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class HistoryTest {
+
+    private static SensorSnapshot snapshot(long timestamp, double value, boolean valid) {
+        double[] values = new double[Sensor.values().length];
+        values[Sensor.OutsideTemperature.ordinal()] = value;
+        long validMask = valid ? (1L << Sensor.OutsideTemperature.ordinal()) : 0L;
+        
+        return new SensorSnapshot(values, validMask, timestamp, timestamp);
+    }
+    
+    @Test
+    public void testRingBuffer() {
+        SensorHistory history = new SensorHistory(4);
+        
+        SensorSeries series = history.query(Sensor.OutsideTemperature, 0, Long.MAX_VALUE, 0);
+        assertEquals(0, series.size());
+        
+        for (int i = 1; i <= 6; i++) {
+            history.append(snapshot(i * 1000, i, i != 5));
+        }
+        
+        series = history.query(Sensor.OutsideTemperature, 0, Long.MAX_VALUE, 0);
+        assertEquals(3, series.size());
+        assertEquals(3000, series.getTimestamp(0));
+        assertEquals(3.0, series.getValue(0), 0.0000001);
+        assertEquals(4000, series.getTimestamp(1));
+        assertEquals(6000, series.getTimestamp(2));
+        
+        series = history.query(Sensor.OutsideTemperature, 3500, 6000, 0);
+        assertEquals(2, series.size());
+        assertEquals(4.0, series.getValue(0), 0.0000001);
+        
+        series = history.query(Sensor.RoomTemperature, 0, Long.MAX_VALUE, 0);
+        assertEquals(0, series.size());
+    }
+    
+    @Test
+    public void testStep() {
+        SensorHistory history = new SensorHistory(10);
+        for (int i = 0; i < 10; i++) {
+            history.append(snapshot(i * 1000, i, true));
+        }
+        
+        SensorSeries series = history.query(Sensor.OutsideTemperature, 0, 9000, 3000);
+        assertEquals(4, series.size());
+        assertEquals(2.0, series.getValue(0), 0.0000001);
+        assertEquals(5.0, series.getValue(1), 0.0000001);
+        assertEquals(8.0, series.getValue(2), 0.0000001);
+        assertEquals(9.0, series.getValue(3), 0.0000001);
+    }
+    
+    /**
+     * Readers never see an entry which is written at the same time.
+     */
+    @Test
+    public void testConcurrentQuery() throws InterruptedException {
+        SensorHistory history = new SensorHistory(16);
+        
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 200000; i++) {
+                history.append(snapshot(i, i, true));
+            }
+        });
+        writer.start();
+        
+        while (writer.isAlive()) {
+            SensorSeries series = history.query(Sensor.OutsideTemperature, 0, Long.MAX_VALUE, 0);
+            
+            for (int i = 0; i < series.size(); i++) {
+                assertEquals(series.getTimestamp(i), series.getValue(i), 0.0);
+                assertTrue((i == 0) || (series.getTimestamp(i) == series.getTimestamp(i - 1) + 1));
+            }
+            
+            Thread.yield();
+        }
+        
+        writer.join();
+        assertEquals(200000 - 15, history.getOldestTimestamp());
+    }
+    
+}
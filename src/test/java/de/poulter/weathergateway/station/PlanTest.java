@@ -0,0 +1,95 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static de.poulter.weathergateway.station.StationBinaryTools.stringToByteArray;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class PlanTest {
+
+    private static final SensorCatalog CATALOG = SensorCatalog.defaults();
+    
+    // room temperature 21.0, outside humidity 71, wind direction 218, rain all 1.0
+    private static final String PAYLOAD = "0x01 0x00 0xd2 0x07 0x47 0x0a 0x00 0xda 0x14 0x00 0x00 0x00 0x0a";
+    
+    @Test
+    public void testDecode() {
+        ByteBuffer payload = ByteBuffer.wrap(stringToByteArray(PAYLOAD));
+        DecodePlan plan = DecodePlan.learn(payload, CATALOG);
+        
+        assertTrue(plan.matches(payload));
+        assertEquals(13, plan.getLength());
+        
+        double[] values = new double[Sensor.values().length];
+        long validMask = plan.decode(payload, values);
+        
+        assertEquals(plan.getMask(), validMask);
+        assertEquals(4, Long.bitCount(validMask));
+        assertEquals(  21.0, values[Sensor.RoomTemperature.ordinal()], 0.0000001);
+        assertEquals(  71.0, values[Sensor.OutsideHumidity.ordinal()], 0.0000001);
+        assertEquals( 218.0, values[Sensor.WindDirection.ordinal()], 0.0000001);
+        assertEquals(   1.0, values[Sensor.RainAll.ordinal()], 0.0000001);
+        
+        // the same layout with other values still matches
+        ByteBuffer next = ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd3 0x07 0x7f 0x0a 0x00 0xdb 0x14 0x00 0x00 0x00 0x0b"));
+        assertTrue(plan.matches(next));
+        
+        validMask = plan.decode(next, values);
+        assertEquals(3, Long.bitCount(validMask));
+        assertEquals(  21.1, values[Sensor.RoomTemperature.ordinal()], 0.0000001);
+        assertEquals(   0.0, values[Sensor.OutsideHumidity.ordinal()], 0.0000001);
+        assertEquals(   1.1, values[Sensor.RainAll.ordinal()], 0.0000001);
+    }
+    
+    @Test
+    public void testLayoutChanged() {
+        DecodePlan plan = DecodePlan.learn(ByteBuffer.wrap(stringToByteArray(PAYLOAD)), CATALOG);
+        
+        // other order
+        assertFalse(plan.matches(ByteBuffer.wrap(stringToByteArray("0x07 0x47 0x01 0x00 0xd2 0x0a 0x00 0xda 0x14 0x00 0x00 0x00 0x0a"))));
+        
+        // sensor missing
+        assertFalse(plan.matches(ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd2 0x0a 0x00 0xda 0x14 0x00 0x00 0x00 0x0a"))));
+        
+        // other sensor with the same size
+        assertFalse(plan.matches(ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd2 0x06 0x47 0x0a 0x00 0xda 0x14 0x00 0x00 0x00 0x0a"))));
+    }
+    
+    @Test
+    public void testNotLearned() {
+        // unknown sensor
+        assertNull(DecodePlan.learn(ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd2 0x0d 0x00 0x07 0x47")), CATALOG));
+        
+        // record cut off
+        assertNull(DecodePlan.learn(ByteBuffer.wrap(stringToByteArray("0x01 0x00 0xd2 0x0a 0x00")), CATALOG));
+    }
+    
+}
@@ -0,0 +1,179 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class PushTest {
+
+    private static final String ECOWITT = "PASSKEY=0123456789ABCDEF0123456789ABCDEF&stationtype=EasyWeatherV1.4.2&dateutc=2019-09-20+10:32:13"
+                                        + "&tempinf=72.1&humidityin=45&baromrelin=29.921&baromabsin=29.612&tempf=50.0&humidity=80&winddir=218"
+                                        + "&windspeedmph=2.24&windgustmph=4.47&maxdailygust=8.05&rainratein=0.000&eventrainin=0.000&hourlyrainin=0.000"
+                                        + "&dailyrainin=0.031&weeklyrainin=0.130&monthlyrainin=1.000&yearlyrainin=10.000&totalrainin=10.000"
+                                        + "&solarradiation=100.00&uv=2&wh65batt=0&freq=868M&model=WS2900_V2.01.10";
+    
+    private static final String WUNDERGROUND = "ID=KXXTEST1&PASSWORD=secret&indoortempf=68.0&tempf=-4.0&dewptf=-9999&humidity=55"
+                                             + "&baromin=30.10&UV=3&softwaretype=EasyWeather%20V1.4.2&action=updateraw&realtime=1&rtfreq=5";
+    
+    private static PushDecoder.Upload decode(String form) {
+        byte[] bytes = form.getBytes(StandardCharsets.ISO_8859_1);
+        return PushDecoder.decode(bytes, bytes.length);
+    }
+    
+    private static double value(PushDecoder.Upload upload, Sensor sensor) {
+        assertTrue(sensor.name(), (upload.getValidMask() & (1L << sensor.ordinal())) != 0);
+        return upload.getValues()[sensor.ordinal()];
+    }
+    
+    @Test
+    public void testEcowitt() {
+        PushDecoder.Upload upload = decode(ECOWITT);
+        
+        assertEquals("0123456789ABCDEF0123456789ABCDEF", upload.getKey());
+        assertEquals("WS2900_V2.01.10", upload.getModel());
+        assertEquals("EasyWeatherV1.4.2", upload.getFirmware());
+        assertEquals(17, Long.bitCount(upload.getValidMask()));
+        assertEquals(0L, upload.getInvalidMask());
+        
+        assertEquals(   22.3, value(upload, Sensor.RoomTemperature), 0.0000001);
+        assertEquals(   45.0, value(upload, Sensor.RoomHumidity), 0.0000001);
+        assertEquals( 1013.2, value(upload, Sensor.BarometricPressureRelative), 0.0000001);
+        assertEquals( 1002.8, value(upload, Sensor.BarometricPressureAbsolute), 0.0000001);
+        assertEquals(   10.0, value(upload, Sensor.OutsideTemperature), 0.0000001);
+        assertEquals(   80.0, value(upload, Sensor.OutsideHumidity), 0.0000001);
+        assertEquals(  218.0, value(upload, Sensor.WindDirection), 0.0000001);
+        assertEquals(    3.6, value(upload, Sensor.WindSpeed), 0.0000001);
+        assertEquals(    7.2, value(upload, Sensor.GustyWindSpeed), 0.0000001);
+        assertEquals(    0.0, value(upload, Sensor.RainHour), 0.0000001);
+        assertEquals(    0.8, value(upload, Sensor.RainDay), 0.0000001);
+        assertEquals(    3.3, value(upload, Sensor.RainWeek), 0.0000001);
+        assertEquals(   25.4, value(upload, Sensor.RainMonth), 0.0000001);
+        assertEquals(  254.0, value(upload, Sensor.RainYear), 0.0000001);
+        assertEquals(  254.0, value(upload, Sensor.RainAll), 0.0000001);
+        assertEquals(12670.0, value(upload, Sensor.Lightness), 0.0000001);
+        assertEquals(    2.0, value(upload, Sensor.UvIdxRaw), 0.0000001);
+    }
+    
+    @Test
+    public void testWunderground() {
+        PushDecoder.Upload upload = decode(WUNDERGROUND);
+        
+        assertEquals("KXXTEST1", upload.getKey());
+        assertNull(upload.getModel());
+        assertEquals("EasyWeather V1.4.2", upload.getFirmware());
+        assertEquals(5, Long.bitCount(upload.getValidMask()));
+        assertEquals(1L << Sensor.DewPoint.ordinal(), upload.getInvalidMask());
+        
+        assertEquals(  20.0, value(upload, Sensor.RoomTemperature), 0.0000001);
+        assertEquals( -20.0, value(upload, Sensor.OutsideTemperature), 0.0000001);
+        assertEquals(  55.0, value(upload, Sensor.OutsideHumidity), 0.0000001);
+        assertEquals(1019.3, value(upload, Sensor.BarometricPressureRelative), 0.0000001);
+        assertEquals(   3.0, value(upload, Sensor.UvIdxRaw), 0.0000001);
+    }
+    
+    @Test
+    public void testMalformed() {
+        PushDecoder.Upload upload = decode("tempf=&humidity=1e2&winddir&&=5&uv=-&PASSKEY=");
+        
+        assertEquals("", upload.getKey());
+        assertEquals(0L, upload.getValidMask());
+        assertEquals((1L << Sensor.OutsideTemperature.ordinal()) | (1L << Sensor.OutsideHumidity.ordinal()) | (1L << Sensor.UvIdxRaw.ordinal()), upload.getInvalidMask());
+        
+        // only the given length is decoded
+        byte[] form = "tempf=50.0&humidity=80".getBytes(StandardCharsets.ISO_8859_1);
+        upload = PushDecoder.decode(form, 10);
+        assertEquals(10.0, value(upload, Sensor.OutsideTemperature), 0.0000001);
+        assertEquals(1, Long.bitCount(upload.getValidMask()));
+    }
+    
+    @Test
+    public void testKeys() {
+        assertTrue(PushService.isValidKey(decode(ECOWITT).getKey()));
+        assertTrue(PushService.isValidKey(decode(WUNDERGROUND).getKey()));
+        assertTrue(PushService.isValidKey("station_1-a"));
+        
+        assertFalse(PushService.isValidKey(decode("PASSKEY=..%2F..%2Fetc").getKey()));
+        assertFalse(PushService.isValidKey(decode("ID=%2Ftmp%2Fx").getKey()));
+        assertFalse(PushService.isValidKey(".."));
+        assertFalse(PushService.isValidKey("a b"));
+        assertFalse(PushService.isValidKey(""));
+        assertFalse(PushService.isValidKey("0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0"));
+    }
+    
+    @Test
+    public void testRegistry() {
+        StationRegistry registry = new StationRegistry();
+        InetAddress address = InetAddress.getLoopbackAddress();
+        
+        Station polled = new Station("AA", address, 45000, "polled", 1000);
+        registry.register(polled);
+        assertEquals(polled, registry.registerPush(new Station("AA", address, 0, "push", 1000), 2));
+        
+        Station first = new Station("P1", address, 0, "push", 1000);
+        assertEquals(first, registry.registerPush(first, 2));
+        assertEquals(first, registry.registerPush(new Station("P1", address, 0, "push", 2000), 2));
+        assertEquals(1, registry.getPushStationCount());
+        
+        Station renewed = new Station("P1", address, 0, "push", 5000);
+        assertTrue(registry.replace(first, renewed));
+        assertFalse(registry.replace(first, renewed));
+        
+        assertTrue(registry.registerPush(new Station("P2", address, 0, "push", 1000), 2) != null);
+        assertNull(registry.registerPush(new Station("P3", address, 0, "push", 1000), 2));
+        assertEquals(2, registry.getPushStationCount());
+        
+        // the expired push station makes room for another one
+        registry.removeExpired(2000);
+        assertEquals(1, registry.getPushStationCount());
+        assertTrue(registry.registerPush(new Station("P3", address, 0, "push", 3000), 2) != null);
+        assertEquals(2, registry.getPushStationCount());
+    }
+    
+    @Test
+    public void testParseNumber() {
+        assertEquals(12.5, parse("12.5"), 0.0);
+        assertEquals(-0.25, parse("-0.25"), 0.0);
+        assertEquals(0.5, parse(".5"), 0.0);
+        assertEquals(1.0, parse("1."), 0.0);
+        assertEquals(29.921, parse("29.921"), 0.0);
+        assertTrue(Double.isNaN(parse("")));
+        assertTrue(Double.isNaN(parse("-")));
+        assertTrue(Double.isNaN(parse("1.2.3")));
+        assertTrue(Double.isNaN(parse("1e5")));
+        assertTrue(Double.isNaN(parse("1234567890123456")));
+    }
+    
+    private static double parse(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        return PushDecoder.parseNumber(bytes, 0, bytes.length);
+    }
+    
+}
@@ -0,0 +1,108 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.poulter.weathergateway.station.SensorRollup.Resolution;
+import de.poulter.weathergateway.station.SensorRollup.RollupSeries;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class RollupTest {
+
+    private static SensorSnapshot snapshot(long timestamp, double temperature, double rain, double direction) {
+        double[] values = new double[Sensor.values().length];
+        values[Sensor.OutsideTemperature.ordinal()] = temperature;
+        values[Sensor.RainDay.ordinal()] = rain;
+        values[Sensor.WindDirection.ordinal()] = direction;
+        
+        long validMask = (1L << Sensor.OutsideTemperature.ordinal()) | (1L << Sensor.RainDay.ordinal()) | (1L << Sensor.WindDirection.ordinal());
+        return new SensorSnapshot(values, validMask, timestamp, timestamp);
+    }
+    
+    @Test
+    public void testRollup() {
+        RollupService rollupService = new RollupService();
+        Station station = new Station("00-00-00-00-00-01", null, 0, "test", 0);
+        
+        rollupService.onSnapshot(station, snapshot(     0, 10.0, 5.0, 350.0));
+        rollupService.onSnapshot(station, snapshot( 20000, 12.0, 5.5,  10.0));
+        rollupService.onSnapshot(station, snapshot( 40000, 14.0, 6.0,  30.0));
+        rollupService.onSnapshot(station, snapshot( 70000, 20.0, 0.5, 180.0));
+        
+        SensorRollup rollup = rollupService.getRollup(station.getMac(), Resolution.MINUTE);
+        
+        RollupSeries series = rollup.query(Sensor.OutsideTemperature, 0, Long.MAX_VALUE);
+        assertEquals(2, series.size());
+        assertEquals(0, series.getStarts()[0]);
+        assertEquals(60000, series.getStarts()[1]);
+        assertEquals(3, series.getCounts()[0]);
+        assertEquals(10.0, series.getMins()[0], 0.0000001);
+        assertEquals(14.0, series.getMaxs()[0], 0.0000001);
+        assertEquals(12.0, series.getValues()[0], 0.0000001);
+        assertEquals(20.0, series.getValues()[1], 0.0000001);
+        
+        // the first value has no predecessor, the counter was reset in the second minute
+        series = rollup.query(Sensor.RainDay, 0, Long.MAX_VALUE);
+        assertEquals(1.0, series.getValues()[0], 0.0000001);
+        assertEquals(0.5, series.getValues()[1], 0.0000001);
+        
+        series = rollup.query(Sensor.WindDirection, 0, Long.MAX_VALUE);
+        assertEquals(10.0, series.getValues()[0], 0.5);
+        assertEquals(180.0, series.getValues()[1], 0.0000001);
+        
+        series = rollup.query(Sensor.RoomTemperature, 0, Long.MAX_VALUE);
+        assertEquals(0, series.size());
+        
+        series = rollupService.getRollup(station.getMac(), Resolution.HOUR).query(Sensor.OutsideTemperature, 0, Long.MAX_VALUE);
+        assertEquals(1, series.size());
+        assertEquals(4, series.getCounts()[0]);
+        assertEquals(14.0, series.getValues()[0], 0.0000001);
+    }
+    
+    @Test
+    public void testRainHour() {
+        RollupService rollupService = new RollupService();
+        Station station = new Station("00-00-00-00-00-01", null, 0, "test", 0);
+        
+        // the rain of the last hour falls when older rain leaves the hour, that is no counter reset
+        double[] rainHours = { 2.0, 3.5, 1.0, 0.5, 0.0 };
+        for (int i = 0; i < rainHours.length; i++) {
+            double[] values = new double[Sensor.values().length];
+            values[Sensor.RainHour.ordinal()] = rainHours[i];
+            
+            rollupService.onSnapshot(station, new SensorSnapshot(values, 1L << Sensor.RainHour.ordinal(), i * 20000L, i + 1));
+        }
+        
+        RollupSeries series = rollupService.getRollup(station.getMac(), Resolution.MINUTE).query(Sensor.RainHour, 0, Long.MAX_VALUE);
+        assertEquals(2, series.size());
+        assertEquals(3.5, series.getValues()[0], 0.0000001);
+        assertEquals(0.5, series.getValues()[1], 0.0000001);
+        
+        series = rollupService.getRollup(station.getMac(), Resolution.HOUR).query(Sensor.RainHour, 0, Long.MAX_VALUE);
+        assertEquals(3.5, series.getValues()[0], 0.0000001);
+    }
+    
+}
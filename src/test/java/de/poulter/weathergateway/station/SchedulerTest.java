@@ -0,0 +1,86 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SchedulerTest {
+
+    @Test
+    public void testScheduler() {
+        PollScheduler scheduler = new PollScheduler(5000, 30000, 300000, 60000);
+        Station a = new Station("A", InetAddress.getLoopbackAddress(), 1, "a", 0);
+        Station b = new Station("B", InetAddress.getLoopbackAddress(), 2, "b", 0);
+        List<Station> stations = Arrays.asList(a, b);
+        
+        // new stations are due at once
+        assertEquals(2, scheduler.getDue(stations, 0).size());
+        assertEquals(0, scheduler.getDue(stations, 29999).size());
+        assertEquals(2, scheduler.getDue(stations, 30000).size());
+        
+        // fast changes shorten, no changes lengthen the interval
+        scheduler.onSuccess("A", 10, 20);
+        scheduler.onSuccess("B", 0, 20);
+        assertEquals(15000, scheduler.getInterval("A", 30000));
+        assertEquals(45000, scheduler.getInterval("B", 30000));
+        assertEquals(Collections.singletonList(a), scheduler.getDue(stations, 45000));
+        
+        // within the bounds
+        for (int i = 0; i < 10; i++) {
+            scheduler.onSuccess("A", 20, 20);
+            scheduler.onSuccess("B", 0, 20);
+        }
+        assertEquals(5000, scheduler.getInterval("A", 45000));
+        assertEquals(300000, scheduler.getInterval("B", 45000));
+        
+        // demand polls at the minimum interval for a while
+        scheduler.onDemand("B", 50000);
+        assertEquals(5000, scheduler.getInterval("B", 50000));
+        assertEquals(300000, scheduler.getInterval("B", 110000));
+        
+        // failures back off exponentially
+        scheduler.onFailure("A");
+        assertEquals(60000, scheduler.getInterval("A", 50000));
+        scheduler.onFailure("A");
+        scheduler.onFailure("A");
+        assertEquals(240000, scheduler.getInterval("A", 50000));
+        scheduler.onFailure("A");
+        assertEquals(300000, scheduler.getInterval("A", 50000));
+        scheduler.onSuccess("A", 20, 20);
+        assertEquals(30000, scheduler.getInterval("A", 50000));
+        
+        // removed stations are forgotten
+        assertTrue(scheduler.getDue(Collections.singletonList(a), 1000000).contains(a));
+        assertEquals(-1, scheduler.getInterval("B", 1000000));
+    }
+    
+}
@@ -22,8 +22,11 @@ package de.poulter.weathergateway.station;
 
 import static de.poulter.weathergateway.station.StationBinaryTools.stringToByteArray;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -168,4 +171,22 @@ public class SensorsTest {
         assertEquals(  0.0, Sensor.UvIdxRaw.convertValue(stringToByteArray("0xFB"), 0).doubleValue(), 0.0000001);
         assertEquals(  0.0, Sensor.UvIdxRaw.convertValue(stringToByteArray("0xFF"), 0).doubleValue(), 0.0000001);
     }
+    
+    @Test
+    public void testInvalid() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(stringToByteArray("0x7F 0xFF 0xFF 0xFF"));
+        
+        assertTrue(Double.isNaN(Sensor.OutsideTemperature.decodeValue(data, 0)));
+        assertTrue(Double.isNaN(Sensor.BarometricPressureAbsolute.decodeValue(data, 0)));
+        assertTrue(Double.isNaN(Sensor.OutsideHumidity.decodeValue(data, 0)));
+        assertTrue(Double.isNaN(Sensor.RainAll.decodeValue(data, 0)));
+        assertFalse(Sensor.isValid(Sensor.WindDirection.decodeValue(data, 0)));
+        
+        // values of 0.0 are still valid
+        ByteBuffer zero = ByteBuffer.wrap(stringToByteArray("0x00 0x00 0x00 0x00"));
+        for (Sensor sensor : Sensor.values()) {
+            assertTrue(sensor.name(), Sensor.isValid(sensor.decodeValue(zero, 0)));
+            assertEquals(sensor.convertValue(zero, 0).doubleValue(), sensor.decodeValue(zero, 0), 0.0);
+        }
+    }
 }
@@ -0,0 +1,273 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.poulter.weathergateway.GatewayMetrics;
+import de.poulter.weathergateway.station.StationDiscovery.Network;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Runs discovery and polling against the {@link StationSimulator}.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class SimulatorTest {
+
+    private final GatewayMetrics metrics = new GatewayMetrics(new SimpleMeterRegistry());
+    
+    private StationSimulator createSimulator(int stations) {
+        StationSimulator simulator = new StationSimulator();
+        simulator.setStationCount(stations);
+        simulator.setSearchPort(0);
+        simulator.setSeed(42);
+        
+        return simulator;
+    }
+    
+    private Collection<Station> discover(StationSimulator simulator) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        return new StationDiscovery(simulator.getSearchPort(), 1000, metrics).discover(List.of(new Network("lo", loopback, 8)));
+    }
+    
+    @Test
+    public void testDiscovery() throws IOException {
+        StationSimulator simulator = createSimulator(50);
+        simulator.setJitter(20);
+        
+        try {
+            simulator.start();
+            
+            List<Station> stations = new ArrayList<>(discover(simulator));
+            assertEquals(50, stations.size());
+            assertEquals(1, simulator.getSearches());
+            
+            stations.sort((a, b) -> a.getMac().compareTo(b.getMac()));
+            assertEquals("02-57-53-00-00-03", stations.get(3).getMac());
+            assertEquals("WS980-SIM-00003", stations.get(3).getName());
+            assertEquals(InetAddress.getLoopbackAddress(), stations.get(3).getAddress());
+            
+        } finally {
+            simulator.close();
+        }
+    }
+    
+    @Test
+    public void testPolling() throws Exception {
+        StationSimulator simulator = createSimulator(200);
+        simulator.setLatency(5);
+        simulator.setJitter(20);
+        simulator.setPartialWrites(0.5);
+        
+        Map<String, ByteBuffer> payloads = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(200);
+        
+        try (StationPoller poller = new StationPoller(2000, (station, payload) -> {
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload).flip();
+            payloads.put(station.getMac(), copy);
+            latch.countDown();
+        }, metrics)) {
+            simulator.start();
+            poller.start();
+            
+            for (Station station : discover(simulator)) {
+                poller.poll(station);
+            }
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(200, payloads.size());
+            
+            for (ByteBuffer payload : payloads.values()) {
+                int sensors = 0;
+                for (int pos = 0; pos < payload.limit(); sensors++) {
+                    Sensor sensor = Sensor.getSensor(StationBinaryTools.fromByteUnsigned(payload, pos++));
+                    assertFalse(Double.isNaN(sensor.decodeValue(payload, pos)));
+                    pos += sensor.getSize();
+                }
+                
+                assertEquals(Sensor.values().length, sensors);
+            }
+            
+        } finally {
+            simulator.close();
+        }
+    }
+    
+    @Test
+    public void testPipelining() throws Exception {
+        StationSimulator simulator = createSimulator(20);
+        simulator.setLatency(5);
+        simulator.setJitter(20);
+        simulator.setPartialWrites(0.5);
+        
+        CountDownLatch latch = new CountDownLatch(20);
+        
+        try (StationPoller poller = new StationPoller(2000, (station, payload) -> latch.countDown(), metrics)) {
+            simulator.start();
+            poller.start();
+            
+            // both requests go out in one write and are answered over the same connection
+            List<CompletableFuture<byte[]>> versions = new ArrayList<>();
+            for (Station station : discover(simulator)) {
+                versions.add(poller.send(station, StationCommand.VERSION));
+                poller.poll(station);
+            }
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            
+            for (CompletableFuture<byte[]> version : versions) {
+                assertEquals("EasyWeatherV1.4.2", DataService.parseVersion(version.get(5, TimeUnit.SECONDS)));
+            }
+            
+            assertEquals(40, simulator.getResponses());
+            
+        } finally {
+            simulator.close();
+        }
+    }
+    
+    @Test
+    public void testHandlerFailure() throws Exception {
+        StationSimulator simulator = createSimulator(5);
+        CountDownLatch latch = new CountDownLatch(10);
+        
+        try (StationPoller poller = new StationPoller(2000, (station, payload) -> {
+            latch.countDown();
+            throw new IllegalStateException("Handler failed.");
+        }, metrics)) {
+            simulator.start();
+            poller.start();
+            
+            // the second round is only answered if the poller thread survived the first
+            Collection<Station> stations = discover(simulator);
+            for (int round = 0; round < 2; round++) {
+                stations.forEach(poller::poll);
+                Thread.sleep(200);
+            }
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            
+        } finally {
+            simulator.close();
+        }
+    }
+    
+    @Test
+    public void testTasks() throws Exception {
+        List<String> threads = new ArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        try (StationPoller poller = new StationPoller(2000, (station, payload) -> {}, metrics)) {
+            poller.start();
+            
+            // a failing task does not stop the poller thread
+            assertTrue(poller.execute(() -> { throw new IllegalStateException(); }));
+            assertTrue(poller.execute(() -> threads.add(Thread.currentThread().getName())));
+            assertTrue(poller.execute(latch::countDown));
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("station-poller"), threads);
+        }
+    }
+    
+    @Test
+    public void testReconnectDelay() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        
+        Station station = new Station("00:0e:c6:00:00:01", InetAddress.getLoopbackAddress(), port, "closed", 0);
+        CountDownLatch refused = new CountDownLatch(1);
+        CountDownLatch skipped = new CountDownLatch(2);
+        
+        try (StationPoller poller = new StationPoller(2000, new StationPoller.ResponseHandler() {
+            
+            @Override
+            public void onResponse(Station station, ByteBuffer payload) {
+            }
+            
+            @Override
+            public void onFailure(Station station) {
+                refused.countDown();
+                skipped.countDown();
+            }
+        }, metrics)) {
+            poller.start();
+            
+            poller.poll(station);
+            assertTrue(refused.await(5, TimeUnit.SECONDS));
+            
+            // a poll skipped while waiting to reconnect is a failure to the handler as well
+            poller.poll(station);
+            assertTrue(skipped.await(500, TimeUnit.MILLISECONDS));
+        }
+    }
+    
+    @Test
+    public void testCorruption() throws Exception {
+        StationSimulator simulator = createSimulator(5);
+        simulator.setCorruption(1.0);
+        
+        CountDownLatch latch = new CountDownLatch(1);
+        
+        try (StationPoller poller = new StationPoller(500, (station, payload) -> latch.countDown(), metrics)) {
+            simulator.start();
+            poller.start();
+            
+            // the search answers are corrupted as well, so the stations are polled directly
+            simulator.setCorruption(0.0);
+            Collection<Station> stations = discover(simulator);
+            assertEquals(5, stations.size());
+            simulator.setCorruption(1.0);
+            
+            for (Station station : stations) {
+                poller.poll(station);
+            }
+            
+            assertFalse(latch.await(1, TimeUnit.SECONDS));
+            assertEquals(5, simulator.getResponses());
+            
+        } finally {
+            simulator.close();
+        }
+    }
+    
+}
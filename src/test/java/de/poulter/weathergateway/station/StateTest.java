@@ -0,0 +1,91 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import de.poulter.weathergateway.station.StateStore.StationState;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StateTest {
+
+    @Test
+    public void testFile() throws IOException {
+        Path directory = Files.createTempDirectory("weathergateway");
+        Path file = directory.resolve("state.bin");
+        
+        try {
+            double[] values = new double[Sensor.values().length];
+            values[Sensor.OutsideTemperature.ordinal()] = 12.3;
+            values[Sensor.RainDay.ordinal()] = 4.5;
+            long validMask = 1L << Sensor.OutsideTemperature.ordinal();
+            
+            Station station = new Station("AA-BB-CC-DD-EE-FF", InetAddress.getByName("10.0.0.202"), 45000, "Garden", 1);
+            StationState state = new StationState(station, new SensorSnapshot(values, validMask, 5000, 42));
+            
+            StateStore.writeFile(file, Collections.singletonList(state));
+            StateStore.writeFile(file, Collections.singletonList(state));
+            
+            List<StationState> states = StateStore.readFile(file);
+            assertEquals(1, states.size());
+            
+            Station restored = states.get(0).getStation();
+            assertEquals("AA-BB-CC-DD-EE-FF", restored.getMac());
+            assertEquals("10.0.0.202", restored.getAddress().getHostAddress());
+            assertEquals(45000, restored.getPort());
+            assertEquals("Garden", restored.getName());
+            
+            SensorSnapshot snapshot = states.get(0).getSnapshot();
+            assertTrue(snapshot.isStale());
+            assertEquals(5000, snapshot.getTimestamp());
+            assertEquals(42, snapshot.getSequence());
+            assertEquals(validMask, snapshot.getValidMask());
+            assertEquals(12.3, snapshot.getValue(Sensor.OutsideTemperature), 0.0000001);
+            
+            // only valid values are kept
+            assertFalse(snapshot.isValid(Sensor.RainDay));
+            assertEquals(0.0, snapshot.getValue(Sensor.RainDay), 0.0000001);
+            
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(1, files.count());
+            }
+            
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+    
+}
@@ -0,0 +1,638 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Simulates any number of WS980 stations on the local machine for load and
+ * soak tests. It answers the search broadcast for every virtual station and
+ * serves data and version messages over TCP, each station on its own port. Latency,
+ * jitter, lost answers, corrupted checksums and answers split into several
+ * writes can be configured.
+ * 
+ * Standalone it is started with key=value arguments, e.g.
+ * <pre>
+ * java -cp ... de.poulter.weathergateway.station.StationSimulator stations=2000 firstPort=50000 latency=20 jitter=30 loss=0.01
+ * </pre>
+ * Thousands of stations need a raised open file limit (ulimit -n), one
+ * descriptor per station and one per connection.
+ * 
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StationSimulator implements Runnable, Closeable {
+
+    private static final Logger log = LogManager.getLogger(StationSimulator.class);
+    
+    private static final int MAX_REQUEST_LENGTH = 64;
+    private static final long CHUNK_DELAY = 1;
+    private static final byte[] VERSION = "EasyWeatherV1.4.2".getBytes(StandardCharsets.ISO_8859_1);
+    
+    private int stationCount = 1;
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+    private InetAddress advertisedAddress;
+    private int firstPort;
+    private int searchPort = 46000;
+    
+    // the faults may be changed while the simulator runs
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double loss;
+    private volatile double corruption;
+    private volatile double partialWrites;
+    private long seed = System.nanoTime();
+    
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    
+    // only accessed by the simulator thread
+    private final Queue<Task> tasks = new PriorityQueue<>();
+    private final List<VirtualStation> stations = new ArrayList<>();
+    private SplittableRandom random;
+    private long taskCounter;
+    
+    private Selector selector;
+    private DatagramChannel searchChannel;
+    private volatile boolean running;
+    private Thread thread;
+    
+    public void start() throws IOException {
+        random = new SplittableRandom(seed);
+        selector = Selector.open();
+        
+        searchChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        searchChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        searchChannel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        searchChannel.bind(new InetSocketAddress(searchPort));
+        searchChannel.configureBlocking(false);
+        searchChannel.register(selector, SelectionKey.OP_READ);
+        searchPort = ((InetSocketAddress) searchChannel.getLocalAddress()).getPort();
+        
+        for (int i = 0; i < stationCount; i++) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(new InetSocketAddress(bindAddress, (firstPort > 0) ? (firstPort + i) : 0), 64);
+            server.configureBlocking(false);
+            
+            VirtualStation station = new VirtualStation(i, server, random.split());
+            server.register(selector, SelectionKey.OP_ACCEPT, station);
+            stations.add(station);
+        }
+        
+        log.info("Simulating " + stationCount + " stations on " + bindAddress + ", search port " + searchPort + ".");
+        
+        running = true;
+        thread = new Thread(this, "station-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        running = false;
+        
+        if (selector != null) {
+            selector.wakeup();
+        }
+        
+        if (thread != null) {
+            try {
+                thread.join(1000);
+                
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Task next = tasks.peek();
+                long wait = (next != null) ? Math.max(1, next.time - System.currentTimeMillis()) : 0;
+                selector.select(wait);
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    handle(key);
+                }
+                
+                long now = System.currentTimeMillis();
+                while (!tasks.isEmpty() && (tasks.peek().time <= now)) {
+                    tasks.poll().action.run();
+                }
+                
+            } catch (IOException ex) {
+                log.error("Error in station simulator.", ex);
+            }
+        }
+        
+        for (SelectionKey key : selector.keys()) {
+            close(key.channel());
+        }
+        
+        close(selector);
+    }
+    
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        
+        if (key.channel() == searchChannel) {
+            receiveSearch();
+            
+        } else if (key.isAcceptable()) {
+            accept((VirtualStation) key.attachment());
+            
+        } else {
+            Client client = (Client) key.attachment();
+            
+            try {
+                if (key.isReadable()) {
+                    client.read();
+                }
+                
+                if (key.isValid() && key.isWritable()) {
+                    client.flush();
+                }
+                
+            } catch (IOException ex) {
+                client.close();
+            }
+        }
+    }
+    
+    private void receiveSearch() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+        
+        SocketAddress sender;
+        while ((sender = searchChannel.receive(buffer)) != null) {
+            buffer.flip();
+            byte[] request = new byte[buffer.remaining()];
+            buffer.get(request).clear();
+            
+            if (!Arrays.equals(request, StationBinaryTools.COMMAND_SEARCH)) {
+                log.warn("Ignoring unknown broadcast from " + sender + ".");
+                continue;
+            }
+            
+            searches.incrementAndGet();
+            
+            for (VirtualStation station : stations) {
+                if (random.nextDouble() < loss) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                
+                SocketAddress target = sender;
+                schedule(delay(), () -> sendSearchResponse(station, target));
+            }
+        }
+    }
+    
+    private void sendSearchResponse(VirtualStation station, SocketAddress target) {
+        try {
+            if (searchChannel.send(ByteBuffer.wrap(corrupt(station.createSearchResponse())), target) == 0) {
+                dropped.incrementAndGet();
+            }
+            
+        } catch (IOException ex) {
+            log.warn("Could not answer search of " + target + ".", ex);
+        }
+    }
+    
+    private void accept(VirtualStation station) throws IOException {
+        SocketChannel channel = station.server.accept();
+        if (channel == null) {
+            return;
+        }
+        
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Client(station, channel));
+    }
+    
+    private void answer(Client client, byte[] response) {
+        if (random.nextDouble() < loss) {
+            dropped.incrementAndGet();
+            return;
+        }
+        
+        corrupt(response);
+        
+        // answers on one connection keep their order and are never interleaved
+        long now = System.currentTimeMillis();
+        long delay = Math.max(delay(), client.lastAnswer - now);
+        client.lastAnswer = now + delay + response.length * CHUNK_DELAY;
+        
+        if (random.nextDouble() < partialWrites) {
+            for (int pos = 0; pos < response.length; delay += CHUNK_DELAY) {
+                int length = Math.min(1 + random.nextInt(8), response.length - pos);
+                ByteBuffer chunk = ByteBuffer.wrap(response, pos, length);
+                schedule(delay, () -> client.send(chunk));
+                pos += length;
+            }
+            
+        } else {
+            schedule(delay, () -> client.send(ByteBuffer.wrap(response)));
+        }
+        
+        responses.incrementAndGet();
+    }
+    
+    private byte[] corrupt(byte[] message) {
+        if (random.nextDouble() < corruption) {
+            message[message.length - 1] ^= 0x5A;
+        }
+        
+        return message;
+    }
+    
+    private long delay() {
+        return latency + ((jitter > 0) ? random.nextLong(jitter + 1) : 0);
+    }
+    
+    private void schedule(long delay, Runnable action) {
+        tasks.add(new Task(System.currentTimeMillis() + delay, taskCounter++, action));
+    }
+    
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+            
+        } catch (IOException ex) {
+            log.warn("Unable to close " + closeable + ".", ex);
+        }
+    }
+    
+    /**
+     * Returns the search port, after {@link #start()} the one actually bound.
+     */
+    public int getSearchPort() {
+        return searchPort;
+    }
+    
+    public void setSearchPort(int searchPort) {
+        this.searchPort = searchPort;
+    }
+    
+    public int getStationCount() {
+        return stationCount;
+    }
+    
+    public void setStationCount(int stationCount) {
+        this.stationCount = stationCount;
+    }
+    
+    public void setBindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+    
+    /**
+     * The address reported in the search answers, defaults to the bind address.
+     */
+    public void setAdvertisedAddress(InetAddress advertisedAddress) {
+        this.advertisedAddress = advertisedAddress;
+    }
+    
+    /**
+     * Station i listens on firstPort + i, 0 uses ephemeral ports.
+     */
+    public void setFirstPort(int firstPort) {
+        this.firstPort = firstPort;
+    }
+    
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+    
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+    
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+    
+    public void setCorruption(double corruption) {
+        this.corruption = corruption;
+    }
+    
+    public void setPartialWrites(double partialWrites) {
+        this.partialWrites = partialWrites;
+    }
+    
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    public long getSearches() {
+        return searches.get();
+    }
+    
+    public long getResponses() {
+        return responses.get();
+    }
+    
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        StationSimulator simulator = new StationSimulator();
+        
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            
+            String value = keyValue[1];
+            switch (keyValue[0]) {
+                case "stations": simulator.setStationCount(Integer.parseInt(value)); break;
+                case "bind": simulator.setBindAddress(InetAddress.getByName(value)); break;
+                case "advertise": simulator.setAdvertisedAddress(InetAddress.getByName(value)); break;
+                case "firstPort": simulator.setFirstPort(Integer.parseInt(value)); break;
+                case "searchPort": simulator.setSearchPort(Integer.parseInt(value)); break;
+                case "latency": simulator.setLatency(Long.parseLong(value)); break;
+                case "jitter": simulator.setJitter(Long.parseLong(value)); break;
+                case "loss": simulator.setLoss(Double.parseDouble(value)); break;
+                case "corruption": simulator.setCorruption(Double.parseDouble(value)); break;
+                case "partialWrites": simulator.setPartialWrites(Double.parseDouble(value)); break;
+                case "seed": simulator.setSeed(Long.parseLong(value)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + keyValue[0]);
+            }
+        }
+        
+        simulator.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> close(simulator)));
+        
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println("searches=" + simulator.getSearches() + " responses=" + simulator.getResponses() + " dropped=" + simulator.getDropped());
+        }
+    }
+    
+    private static class Task implements Comparable<Task> {
+        
+        private final long time;
+        private final long order;
+        private final Runnable action;
+        
+        private Task(long time, long order, Runnable action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+        
+        @Override
+        public int compareTo(Task other) {
+            int result = Long.compare(time, other.time);
+            return (result != 0) ? result : Long.compare(order, other.order);
+        }
+    }
+    
+    /**
+     * One simulated station, its sensor values drift a little with every answer.
+     */
+    private class VirtualStation {
+        
+        private final ServerSocketChannel server;
+        private final byte[] mac;
+        private final byte[] name;
+        private final SplittableRandom random;
+        private final int[] values = new int[Sensor.values().length];
+        
+        private VirtualStation(int index, ServerSocketChannel server, SplittableRandom random) {
+            this.server = server;
+            this.mac = new byte[] { 0x02, 0x57, 0x53, (byte) (index >> 16), (byte) (index >> 8), (byte) index };
+            this.name = String.format("WS980-SIM-%05d", index).getBytes(StandardCharsets.ISO_8859_1);
+            this.random = random;
+            
+            for (Sensor sensor : Sensor.values()) {
+                values[sensor.ordinal()] = initialValue(sensor);
+            }
+        }
+        
+        private int initialValue(Sensor sensor) {
+            switch (sensor.getUnit()) {
+                case TEMPERATURE: return 100 + random.nextInt(150);
+                case HUMIDITY: return 30 + random.nextInt(50);
+                case PRESSURE: return 9900 + random.nextInt(400);
+                case DEGREE: return random.nextInt(360);
+                case SPEED: return random.nextInt(100);
+                case MM: return random.nextInt(1000);
+                case LUX: return random.nextInt(1000000);
+                case UWM2: return random.nextInt(500);
+                default: return random.nextInt(10);
+            }
+        }
+        
+        private void drift() {
+            for (Sensor sensor : Sensor.values()) {
+                int value = values[sensor.ordinal()];
+                
+                if (sensor.getAggregation() == Aggregation.DELTA_SUM) {
+                    value += (random.nextInt(10) == 0) ? 1 : 0;
+                } else if (sensor == Sensor.WindDirection) {
+                    value = Math.floorMod(value + random.nextInt(21) - 10, 360);
+                } else {
+                    value = Math.max(0, value + random.nextInt(3) - 1);
+                }
+                
+                values[sensor.ordinal()] = value;
+            }
+        }
+        
+        private byte[] createSearchResponse() throws IOException {
+            InetAddress address = (advertisedAddress != null) ? advertisedAddress : bindAddress;
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            
+            // magic, command, length, mac, ip, port, name length, name, terminating zero, crc
+            byte[] response = new byte[5 + 6 + 4 + 2 + 1 + name.length + 1 + 1];
+            response[0] = (byte) 0xFF;
+            response[1] = (byte) 0xFF;
+            response[2] = 0x12;
+            StationBinaryTools.putInteger(response, 3, response.length);
+            System.arraycopy(mac, 0, response, 5, 6);
+            System.arraycopy(address.getAddress(), 0, response, 11, 4);
+            StationBinaryTools.putInteger(response, 15, port);
+            response[17] = (byte) (name.length + 1);
+            System.arraycopy(name, 0, response, 18, name.length);
+            response[response.length - 1] = StationBinaryTools.crc(response, 2, response.length - 3);
+            
+            return response;
+        }
+        
+        private byte[] createVersionResponse() {
+            // magic, command, length, version length, version, terminating zero, crc
+            byte[] response = new byte[5 + 1 + VERSION.length + 1 + 1];
+            response[0] = (byte) 0xFF;
+            response[1] = (byte) 0xFF;
+            response[2] = 0x50;
+            StationBinaryTools.putInteger(response, 3, response.length);
+            response[5] = (byte) VERSION.length;
+            System.arraycopy(VERSION, 0, response, 6, VERSION.length);
+            response[response.length - 1] = StationBinaryTools.crc(response, 2, response.length - 3);
+            
+            return response;
+        }
+        
+        private byte[] createDataResponse() {
+            drift();
+            
+            int length = 1;
+            for (Sensor sensor : Sensor.values()) {
+                length += 1 + sensor.getSize();
+            }
+            
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.put((byte) 0x04);
+            
+            for (Sensor sensor : Sensor.values()) {
+                int value = values[sensor.ordinal()];
+                payload.put((byte) sensor.getId());
+                
+                switch (sensor.getSize()) {
+                    case 1: payload.put((byte) value); break;
+                    case 2: payload.putShort((short) value); break;
+                    default: payload.putInt(value); break;
+                }
+            }
+            
+            return StationBinaryTools.createCommand((byte) 0x0b, payload.array());
+        }
+    }
+    
+    /**
+     * A connection of the gateway to a simulated station.
+     */
+    private class Client {
+        
+        private final VirtualStation station;
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+        private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        private long lastAnswer;
+        
+        private Client(VirtualStation station, SocketChannel channel) {
+            this.station = station;
+            this.channel = channel;
+        }
+        
+        private void read() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+            
+            // several requests may arrive at once, they are answered independently
+            while (request.position() > 2) {
+                boolean version = (request.get(2) == StationBinaryTools.COMMAND_VERSION[2]);
+                byte[] command = version ? StationBinaryTools.COMMAND_VERSION : StationBinaryTools.COMMAND_DATA;
+                
+                if (request.position() < command.length) {
+                    return;
+                }
+                
+                for (int i = 0; i < command.length; i++) {
+                    if (request.get(i) != command[i]) {
+                        log.warn("Unknown request for station " + station.server.getLocalAddress() + ", closing connection.");
+                        close();
+                        return;
+                    }
+                }
+                
+                request.flip().position(command.length);
+                request.compact();
+                
+                answer(this, version ? station.createVersionResponse() : station.createDataResponse());
+            }
+        }
+        
+        private void send(ByteBuffer data) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            
+            pending.add(data);
+            
+            try {
+                flush();
+                
+            } catch (IOException ex) {
+                close();
+            }
+        }
+        
+        private void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                channel.write(pending.peek());
+                
+                if (pending.peek().hasRemaining()) {
+                    channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                
+                pending.poll();
+            }
+            
+            channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+        }
+        
+        private void close() {
+            pending.clear();
+            StationSimulator.close(channel);
+        }
+    }
+    
+}
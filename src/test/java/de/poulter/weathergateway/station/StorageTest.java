@@ -0,0 +1,111 @@
+/*
+ * Weathergateway
+ *
+ * Copyright (C) 2019 Christian Poulter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package de.poulter.weathergateway.station;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * @author Christian Poulter <devel@poulter.de>
+ */
+public class StorageTest {
+
+    @Test
+    public void testSegment() throws IOException {
+        Path directory = Files.createTempDirectory("weathergateway");
+        
+        try {
+            StorageSegment segment = StorageSegment.open(directory.resolve("segment"), 10, true);
+            for (int i = 0; i < 12; i++) {
+                double[] values = new double[Sensor.values().length];
+                values[Sensor.OutsideTemperature.ordinal()] = i / 10.0;
+                long validMask = (i == 3) ? 0L : (1L << Sensor.OutsideTemperature.ordinal());
+                
+                assertEquals(i < 10, segment.append(new SensorSnapshot(values, validMask, 1000 + i * 1000, i)));
+            }
+            assertEquals(10, segment.getCount());
+            segment.force();
+            
+            StorageSegment readOnly = StorageSegment.open(directory.resolve("segment"), 5, false);
+            assertEquals(10, readOnly.getCount());
+            
+            SensorSeries series = new SensorSeries(0, 0, 0);
+            readOnly.read(Sensor.OutsideTemperature, 2500, 6000, series);
+            assertEquals(3, series.size());
+            assertEquals(3000, series.getTimestamp(0));
+            assertEquals(0.2, series.getValue(0), 0.0000001);
+            assertEquals(5000, series.getTimestamp(1));
+            assertEquals(6000, series.getTimestamp(2));
+            
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    @Test
+    public void testStore() throws Exception {
+        Path directory = Files.createTempDirectory("weathergateway");
+        
+        try {
+            HistoryStore store = new HistoryStore();
+            ReflectionTestUtils.setField(store, "enabled", true);
+            ReflectionTestUtils.setField(store, "directory", directory.toString());
+            ReflectionTestUtils.setField(store, "rows", 10);
+            store.afterPropertiesSet();
+            
+            Station station = new Station("00:11:22:33:44:55", null, 0, "test", 0);
+            double[] values = new double[Sensor.values().length];
+            values[Sensor.OutsideTemperature.ordinal()] = 21.5;
+            long validMask = 1L << Sensor.OutsideTemperature.ordinal();
+            
+            // two days, so the first one is read from a read only segment
+            store.onSnapshot(station, new SensorSnapshot(values, validMask, 1000, 0));
+            store.onSnapshot(station, new SensorSnapshot(values, validMask, 86401000, 0));
+            
+            // the queued snapshots are written before the store is closed
+            store.destroy();
+            
+            assertTrue(store.hasHistory(station.getMac()));
+            assertFalse(store.hasHistory("../" + station.getMac()));
+            
+            for (int i = 0; i < 2; i++) {
+                SensorSeries series = new SensorSeries(0, 0, 0);
+                store.query(station.getMac(), Sensor.OutsideTemperature, 0, Long.MAX_VALUE, series);
+                assertEquals(2, series.size());
+                assertEquals(1000, series.getTimestamp(0));
+                assertEquals(86401000, series.getTimestamp(1));
+            }
+            
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+}
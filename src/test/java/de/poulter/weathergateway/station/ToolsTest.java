@@ -26,6 +26,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -144,6 +145,48 @@ public class ToolsTest {
         }        
     }
 
+    @Test
+    public void testFrame() throws IOException {
+        byte[] data = StationBinaryTools.stringToByteArray("0x00 0x00 0xff 0xff 0x0b 0x00 0x08 0x04 0x01 0x00 0x05 0x1d 0x00");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.position(2);
+        
+        StationFrame frame = new StationFrame().wrap(buffer, 0x0b, 0x04);
+        assertEquals(2, frame.getStart());
+        assertEquals(10, frame.getLength());
+        assertEquals(2, frame.getPayloadLength());
+        assertEquals(1, frame.getUnsignedByte(0));
+        assertEquals(2, buffer.position());
+        
+        ByteBuffer payload = frame.getPayload();
+        assertEquals(2, payload.remaining());
+        assertEquals(1, payload.get(0));
+        assertEquals(0, payload.get(1));
+        
+        data = StationBinaryTools.stringToByteArray("0xff 0xff 0x12 0x00 0x27 0xbc 0xdd 0xc2 0x9c 0x8e 0xb2 0x0a 0x00 0x00 0xca 0xaf 0xc8 0x14 0x45 0x61 0x73 0x79 0x57 0x65 0x61 0x74 0x68 0x65 0x72 0x2d 0x57 0x49 0x46 0x49 0x38 0x45 0x42 0x32 0x7e");
+        frame.wrap(ByteBuffer.wrap(data), 0x12);
+        assertEquals("BC-DD-C2-9C-8E-B2", frame.getMac(0));
+        assertEquals(45000, frame.getTwoBytesUnsigned(10));
+        assertEquals("EasyWeather-WIFI8EB", frame.getString(13, frame.getUnsignedByte(12) - 1));
+        
+        try {
+            data = StationBinaryTools.stringToByteArray("0xff 0xff 0x0b 0x00 0x08 0x04 0x01 0x00 0x00 0x19");
+            frame.wrap(ByteBuffer.wrap(data), 0x0b, 0x04);
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals(StationFrameException.Reason.CRC_MISMATCH, ex.getReason());
+        }
+        
+        try {
+            data = StationBinaryTools.stringToByteArray("0xff 0xff 0x0b 0x00 0x09 0x04 0x01 0x00 0x01 0x19");
+            frame.wrap(ByteBuffer.wrap(data), 0x0b, 0x04);
+            fail();
+        } catch (StationFrameException ex) {
+            assertEquals(StationFrameException.Reason.SHORT_READ, ex.getReason());
+        }
+    }
+    
     @Test
     public void testFrom2() throws IOException {
         byte[] data = stringToByteArray("0x00 0x01 0x7F 0xFF 0xFE 0x80");